@@ -0,0 +1,120 @@
+package gemini_lite.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import gemini_lite.Server;
+
+/**
+ * Generated document tree and helpers shared by the benchmarks.
+ * The tree is built from a fixed seed, so every run serves the same files.
+ */
+final class Capsule {
+    static final int DIRECTORIES = 20;
+    static final int FILES_PER_DIRECTORY = 50;
+    static final int SMALL_FILE_BYTES = 2 * 1024;
+    static final int BIG_FILE_BYTES = 1024 * 1024;
+    private static final long SEED = 1958L;
+
+    final Path root;
+    final List<String> paths = new ArrayList<>(); // request paths of the small files, in a fixed order
+
+    private Capsule(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * writes DIRECTORIES x FILES_PER_DIRECTORY small files, an index.gmi per directory and one big.bin
+     */
+    static Capsule generate() throws IOException {
+        Capsule capsule = new Capsule(Files.createTempDirectory("gemini-bench"));
+        Random random = new Random(SEED);
+        byte[] small = new byte[SMALL_FILE_BYTES];
+        Files.writeString(capsule.root.resolve("index.gmi"), "# Bench capsule\n");
+        for (int d = 0; d < DIRECTORIES; d++) {
+            Path dir = Files.createDirectory(capsule.root.resolve("dir" + d));
+            StringBuilder index = new StringBuilder("# dir" + d + "\n");
+            for (int f = 0; f < FILES_PER_DIRECTORY; f++) {
+                random.nextBytes(small);
+                String name = "file" + f + ((f % 2 == 0) ? ".gmi" : ".txt");
+                Files.write(dir.resolve(name), small);
+                index.append("=> ").append(name).append('\n');
+                capsule.paths.add("/dir" + d + "/" + name);
+            }
+            Files.writeString(dir.resolve("index.gmi"), index);
+        }
+        byte[] big = new byte[BIG_FILE_BYTES];
+        random.nextBytes(big);
+        Files.write(capsule.root.resolve("big.bin"), big);
+        return capsule;
+    }
+
+    void delete() throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * runs server on a daemon thread (the forked benchmark JVM exits with it) and waits until it accepts
+     */
+    static void start(Server server, int port) throws Exception {
+        Thread t = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "bench-server-" + port);
+        t.setDaemon(true);
+        t.start();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket probe = new Socket("localhost", port)) {
+                return;
+            } catch (IOException notYet) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("Server on port " + port + " did not start");
+    }
+
+    /**
+     * reads body to the end
+     * @return number of bytes read
+     */
+    static long drain(InputStream body, byte[] scratch) throws IOException {
+        long total = 0;
+        int n;
+        while ((n = body.read(scratch)) != -1) {
+            total += n;
+        }
+        return total;
+    }
+}
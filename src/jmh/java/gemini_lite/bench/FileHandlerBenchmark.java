@@ -0,0 +1,128 @@
+package gemini_lite.bench;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gemini_lite.protocol.ArchiveRequestHandler;
+import gemini_lite.protocol.CapsuleArchive;
+import gemini_lite.protocol.DocumentIndex;
+import gemini_lite.protocol.FileCache;
+import gemini_lite.protocol.FileSystemRequestHandler;
+import gemini_lite.protocol.HandlerResult;
+import gemini_lite.protocol.Request;
+import gemini_lite.protocol.RequestHandler;
+
+/**
+ * FileSystemRequestHandler.handle over a generated tree: path resolution, MIME lookup and opening the body.
+ * "stat" is the plain handler, "cache" adds a FileCache, "index" adds a watched DocumentIndex as well,
+ * "archive" is ArchiveRequestHandler over the same tree packed into a capsule archive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FileHandlerBenchmark {
+
+    @Param({"stat", "cache", "index", "archive"})
+    public String lookup;
+
+    private Capsule capsule;
+    private DocumentIndex index;
+    private RequestHandler handler;
+    private Path archive;
+    private Request[] hits;
+    private Request miss;
+    private Request directory;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        capsule = Capsule.generate();
+        String root = capsule.root.toString();
+        switch (lookup) {
+            case "stat":
+                handler = new FileSystemRequestHandler(root);
+                break;
+            case "cache":
+                handler = new FileSystemRequestHandler(root, new FileCache(64L * 1024 * 1024));
+                break;
+            case "archive":
+                archive = Files.createTempFile("bench-capsule", ".gla");
+                CapsuleArchive.pack(capsule.root, archive);
+                handler = new ArchiveRequestHandler(CapsuleArchive.open(archive));
+                break;
+            default:
+                index = new DocumentIndex(Path.of(root));
+                index.start();
+                handler = new FileSystemRequestHandler(root, new FileCache(64L * 1024 * 1024, Long.MAX_VALUE), index);
+        }
+        hits = new Request[capsule.paths.size()];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = new Request(new URI("gemini-lite://localhost" + capsule.paths.get(i)));
+        }
+        miss = new Request(new URI("gemini-lite://localhost/dir3/nope.gmi"));
+        directory = new Request(new URI("gemini-lite://localhost/dir7/"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (index != null) {
+            index.close();
+        }
+        if (archive != null) {
+            Files.deleteIfExists(archive);
+        }
+        capsule.delete();
+    }
+
+    /**
+     * Walks the files in a fixed order, one per invocation.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = 0;
+    }
+
+    @Benchmark
+    public HandlerResult hit(Cursor cursor) throws Exception {
+        Request request = hits[cursor.next];
+        cursor.next = (cursor.next + 1) % hits.length;
+        return close(handler.handle(request));
+    }
+
+    @Benchmark
+    public HandlerResult missing() throws Exception {
+        return close(handler.handle(miss));
+    }
+
+    @Benchmark
+    public HandlerResult directoryIndex() throws Exception {
+        return close(handler.handle(directory));
+    }
+
+    private static HandlerResult close(HandlerResult result) throws Exception { // the server would close it after sending
+        if (result.hasFileBody()) {
+            result.getFileChannel().close();
+        } else if (result.hasBody()) {
+            result.getBody().close();
+        }
+        return result;
+    }
+}
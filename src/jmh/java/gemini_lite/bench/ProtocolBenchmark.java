@@ -0,0 +1,116 @@
+package gemini_lite.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import gemini_lite.protocol.Reply;
+import gemini_lite.protocol.Request;
+import gemini_lite.protocol.Wire;
+import gemini_lite.protocol.WireInputStream;
+
+/**
+ * Header parsing and writing, no I/O: the per-request cost of the wire format itself.
+ * Both a plain stream (byte-by-byte fallback) and a WireInputStream (buffered scan) are measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ProtocolBenchmark {
+
+    @Param({"short", "long"})
+    public String uriLength;
+
+    private byte[] requestBytes;
+    private byte[] replyBytes;
+    private String requestLine;
+    private String replyLine;
+    private Reply reply;
+
+    @Setup
+    public void setup() throws Exception {
+        String path = uriLength.equals("short") ? "/index.gmi" : "/" + "d".repeat(200) + "/" + "f".repeat(700) + ".gmi";
+        requestLine = "gemini-lite://localhost:1958" + path;
+        replyLine = "20 text/gemini; charset=utf-8";
+        requestBytes = (requestLine + Wire.CRLF).getBytes(StandardCharsets.UTF_8);
+        replyBytes = (replyLine + Wire.CRLF).getBytes(StandardCharsets.UTF_8);
+        reply = Reply.fromHeaderLine(replyLine);
+    }
+
+    @Benchmark
+    public String readHeaderLinePlain() throws IOException {
+        return Wire.readHeaderLine(new ByteArrayInputStream(requestBytes));
+    }
+
+    @Benchmark
+    public String readHeaderLineBuffered() throws IOException {
+        return Wire.readHeaderLine(new WireInputStream(new ByteArrayInputStream(requestBytes)));
+    }
+
+    @Benchmark
+    public Request requestParse() throws Exception {
+        return Request.parse(new WireInputStream(new ByteArrayInputStream(requestBytes)));
+    }
+
+    @Benchmark
+    public Request requestFromHeaderLine() throws Exception {
+        return Request.fromHeaderLine(requestLine);
+    }
+
+    @Benchmark
+    public Reply replyParse() throws IOException {
+        InputStream in = new WireInputStream(new ByteArrayInputStream(replyBytes));
+        return Reply.parse(in);
+    }
+
+    @Benchmark
+    public Reply replyFromHeaderLine() throws Exception {
+        return Reply.fromHeaderLine(replyLine);
+    }
+
+    @Benchmark
+    public void replyWriteTo(Blackhole bh) throws IOException {
+        reply.writeTo(new BlackholeOutputStream(bh));
+    }
+
+    /**
+     * Sink that hands everything to JMH so the writes can't be optimized away.
+     */
+    static final class BlackholeOutputStream extends OutputStream {
+        private final Blackhole bh;
+
+        BlackholeOutputStream(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void write(int b) {
+            bh.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bh.consume(b);
+            bh.consume(len);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package gemini_lite.bench;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gemini_lite.Server;
+import gemini_lite.engine.ClientEngine;
+import gemini_lite.engine.Response;
+import gemini_lite.protocol.FileSystemRequestHandler;
+import gemini_lite.protocol.ProxyRequestHandler;
+
+/**
+ * Full loopback round trips: ClientEngine.fetch against a Server serving the generated capsule,
+ * either directly or through a Proxy in front of it. The body is read to the end every time.
+ * Run with -t N to put N concurrent clients on the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class RoundTripBenchmark {
+
+    @Param({"BLOCKING", "NIO", "VIRTUAL"})
+    public Server.Mode engine;
+
+    @Param({"direct", "proxy"})
+    public String route;
+
+    private Capsule capsule;
+    private ClientEngine client;
+    private URI small;
+    private URI big;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        capsule = Capsule.generate();
+        final int serverPort = Capsule.freePort();
+        final Server server = new Server(serverPort, new FileSystemRequestHandler(capsule.root.toString()));
+        server.setMode(engine);
+        Capsule.start(server, serverPort);
+
+        client = new ClientEngine();
+        if (route.equals("proxy")) {
+            final int proxyPort = Capsule.freePort();
+            final Server proxy = new Server(proxyPort, new ProxyRequestHandler(new ClientEngine()));
+            proxy.setMode(engine);
+            Capsule.start(proxy, proxyPort);
+            client.setProxy("localhost", proxyPort);
+        }
+        small = new URI("gemini-lite://localhost:" + serverPort + capsule.paths.get(0));
+        big = new URI("gemini-lite://localhost:" + serverPort + "/big.bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        capsule.delete();
+    }
+
+    /**
+     * Per-thread read buffer.
+     */
+    @State(Scope.Thread)
+    public static class Scratch {
+        final byte[] buffer = new byte[64 * 1024];
+    }
+
+    @Benchmark
+    public long smallFile(Scratch scratch) throws Exception {
+        return fetch(small, scratch);
+    }
+
+    @Benchmark
+    public long bigFile(Scratch scratch) throws Exception {
+        return fetch(big, scratch);
+    }
+
+    private long fetch(URI uri, Scratch scratch) throws Exception {
+        try (Response response = client.fetch(uri).get()) {
+            if (response.getReply().getStatus() != 20) {
+                throw new IllegalStateException("Unexpected reply: " + response.getReply().getStatus() + " " + response.getReply().getMessage());
+            }
+            return Capsule.drain(response.getBody(), scratch.buffer);
+        }
+    }
+}
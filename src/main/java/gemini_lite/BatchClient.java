@@ -0,0 +1,496 @@
+package gemini_lite;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import gemini_lite.engine.ClientEngine;
+import gemini_lite.engine.Response;
+import gemini_lite.protocol.Reply;
+
+/**
+ * Batch mode of the client: fetches a list of URIs concurrently in one JVM, optionally following the
+ * "=>" links of text/gemini pages on the same hosts (crawl), and saves the bodies to a directory or a zip.
+ * Each URI goes through the same steps as Client.run: input prompts are answered with the --input text (if any),
+ * redirects are followed up to 5 times and "44" slows down the whole host for the requested time.
+ * One line per URI is printed on stdout: final status, URI, meta (or ERR and the error).
+ */
+public class BatchClient {
+    private static final int MAX_REDIRECTS = 5;
+    private static final int MAX_SLOW_DOWNS = 5;
+
+    private final ClientEngine engine;
+    private final int perHost;
+    private final Semaphore total;
+    private final int crawlDepth; // 0 -> only the given URIs
+    private final String input;   // answer to 1x prompts, null -> report the prompt and move on
+    private final Sink sink;      // null -> don't keep bodies (health check)
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+    private final Set<String> seen = ConcurrentHashMap.newKeySet();
+    private final Set<String> crawlHosts = ConcurrentHashMap.newKeySet(); // crawling never leaves the hosts of the seed URIs
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private int pending = 0; // queued + running fetches, guarded by this
+
+    /**
+     * @param engine shared engine, used through its thread-safe fetch
+     * @param perHost fetches allowed at once per host:port
+     * @param concurrency fetches allowed at once overall
+     * @param crawlDepth how many links deep to follow text/gemini links, 0 to not crawl
+     * @param input text sent when a server asks for input, or null
+     * @param sink where bodies are saved, or null to only report statuses
+     */
+    public BatchClient(ClientEngine engine, int perHost, int concurrency, int crawlDepth, String input, Sink sink) {
+        if (perHost < 1) throw new IllegalArgumentException("perHost must be at least 1");
+        if (concurrency < 1) throw new IllegalArgumentException("concurrency must be at least 1");
+        this.engine = engine;
+        this.perHost = perHost;
+        this.total = new Semaphore(concurrency);
+        this.crawlDepth = crawlDepth;
+        this.input = input;
+        this.sink = sink;
+    }
+
+    /**
+     * Entry point for "gemini_lite.Client --batch ...".
+     * Arguments:
+     *   [0] file with one URI per line, or "-" for stdin (blank lines and lines starting with # are skipped)
+     *   --out DIR|FILE.zip   save bodies into a directory tree (host/path) or a zip archive
+     *   --crawl [DEPTH]      follow links in text/gemini bodies on the same hosts (default depth 5)
+     *   --per-host N         fetches at once per host (default 4)
+     *   --concurrency N      fetches at once overall (default 64)
+     *   --input TEXT         answer for input prompts
+     */
+    static void main(String[] args, ClientEngine engine) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: gemini_lite.Client --batch <file|-> [--out <dir|file.zip>] [--crawl [depth]] [--per-host n] [--concurrency n] [--input text]");
+            System.exit(1);
+        }
+        String out = null;
+        String batchInput = null;
+        int depth = 0;
+        int perHost = 4;
+        int concurrency = 64;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--out":
+                    out = argument(args, ++i);
+                    break;
+                case "--input":
+                    batchInput = argument(args, ++i);
+                    break;
+                case "--per-host":
+                    perHost = Integer.parseInt(argument(args, ++i));
+                    break;
+                case "--concurrency":
+                    concurrency = Integer.parseInt(argument(args, ++i));
+                    break;
+                case "--crawl":
+                    if (i + 1 < args.length && args[i + 1].matches("\\d+")) { // depth is optional
+                        depth = Integer.parseInt(args[++i]);
+                    } else {
+                        depth = 5;
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        final List<String> uris = new ArrayList<>();
+        try (BufferedReader reader = args[0].equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    uris.add(line);
+                }
+            }
+        }
+
+        final Sink sink = (out == null) ? null : (out.endsWith(".zip") ? new ZipSink(Paths.get(out)) : new DirectorySink(Paths.get(out)));
+        final BatchClient batch = new BatchClient(engine, perHost, concurrency, depth, batchInput, sink);
+        final long start = System.nanoTime();
+        final boolean allOk;
+        try {
+            allOk = batch.run(uris);
+        } finally {
+            if (sink != null) {
+                sink.close();
+            }
+        }
+        System.err.printf("Fetched %d URIs (%d failed) in %.2fs%n", batch.succeeded.get() + batch.failed.get(),
+                batch.failed.get(), (System.nanoTime() - start) / 1e9);
+        System.exit(allOk ? 0 : 1);
+    }
+
+    private static String argument(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    /**
+     * fetches all URIs (and, when crawling, everything they link to) and waits until they are done
+     * @param uris the seed URIs
+     * @return true if every fetch ended in a 2x reply
+     */
+    public boolean run(List<String> uris) throws InterruptedException {
+        for (String text : uris) {
+            try {
+                URI uri = new URI(text).normalize();
+                crawlHosts.add(hostKey(uri));
+                submit(uri, 0);
+            } catch (Exception e) {
+                report("ERR", text, "Invalid URI: " + e.getMessage());
+                failed.incrementAndGet();
+            }
+        }
+        synchronized (this) {
+            while (pending > 0) {
+                wait();
+            }
+        }
+        workers.shutdown();
+        return failed.get() == 0;
+    }
+
+    private void submit(URI uri, int depth) {
+        if (!seen.add(uri.toString())) {
+            return;
+        }
+        synchronized (this) {
+            pending++;
+        }
+        workers.execute(() -> {
+            try {
+                fetch(uri, depth);
+            } finally {
+                synchronized (this) {
+                    if (--pending == 0) {
+                        notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * one URI from start to final reply, the same state machine as Client.run
+     */
+    private void fetch(URI uri, int depth) {
+        URI current = uri;
+        int redirects = 0;
+        int slowDowns = 0;
+        boolean answered = false;
+        while (true) {
+            final Host host;
+            try {
+                host = hosts.computeIfAbsent(hostKey(current), key -> new Host());
+                host.acquire();
+            } catch (Exception e) {
+                fail(uri, e);
+                return;
+            }
+            try (Response response = engine.fetch(current).get()) {
+                final Reply reply = response.getReply();
+                switch (reply.getStatusGroup()) {
+                    case 1:
+                        if (input == null || answered) { // nothing (more) to answer with
+                            report(reply, uri);
+                            failed.incrementAndGet();
+                            return;
+                        }
+                        current = engine.toQuery(current, input);
+                        answered = true;
+                        continue;
+                    case 2:
+                        save(current, reply, response.getBody(), depth);
+                        report(reply, uri);
+                        succeeded.incrementAndGet();
+                        return;
+                    case 3:
+                        if (redirects >= MAX_REDIRECTS) {
+                            report("ERR", uri.toString(), "Too many redirections (limit is 5)");
+                            failed.incrementAndGet();
+                            return;
+                        }
+                        current = current.resolve(reply.getMessage());
+                        redirects++;
+                        continue;
+                    case 4:
+                        if (reply.getStatus() == 44 && slowDowns < MAX_SLOW_DOWNS) {
+                            slowDowns++;
+                            host.slowDown(slowDownSeconds(reply.getMessage()));
+                            continue;
+                        }
+                        report(reply, uri);
+                        failed.incrementAndGet();
+                        return;
+                    default:
+                        report(reply, uri);
+                        failed.incrementAndGet();
+                        return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(uri, e);
+                return;
+            } catch (Exception e) {
+                fail(uri, e instanceof ExecutionException ? e.getCause() : e);
+                return;
+            } finally {
+                host.release();
+            }
+        }
+    }
+
+    private void save(URI uri, Reply reply, InputStream body, int depth) throws IOException {
+        if (!reply.getMessage().startsWith("text/gemini") || depth >= crawlDepth) { // nothing to look into, just stream it
+            if (sink != null) {
+                sink.write(uri, body);
+            } else {
+                body.transferTo(OutputStream.nullOutputStream());
+            }
+            return;
+        }
+        final byte[] page = body.readAllBytes(); // gemtext pages are small, keep it to look for links
+        if (sink != null) {
+            sink.write(uri, new ByteArrayInputStream(page));
+        }
+        for (String line : new String(page, StandardCharsets.UTF_8).split("\n")) {
+            if (!line.startsWith("=>")) {
+                continue;
+            }
+            String[] parts = line.substring(2).trim().split("\\s+", 2);
+            if (parts[0].isEmpty()) {
+                continue;
+            }
+            try {
+                URI link = uri.resolve(parts[0]);
+                link = new URI(link.getScheme(), link.getAuthority(), link.getPath(), link.getQuery(), null).normalize(); // drop #fragment
+                if ("gemini-lite".equalsIgnoreCase(link.getScheme()) && crawlHosts.contains(hostKey(link))) {
+                    submit(link, depth + 1);
+                }
+            } catch (Exception e) {
+                // not a link we can follow
+            }
+        }
+    }
+
+    private static long slowDownSeconds(String meta) {
+        try {
+            return Math.max(0, Long.parseLong(meta.trim()));
+        } catch (NumberFormatException e) {
+            return 1; // non-numeric meta: wait a bit anyway
+        }
+    }
+
+    private static String hostKey(URI uri) {
+        if (uri.getHost() == null) {
+            throw new IllegalArgumentException("Missing host");
+        }
+        return uri.getHost().toLowerCase() + ":" + (uri.getPort() == -1 ? 1958 : uri.getPort());
+    }
+
+    private void fail(URI uri, Throwable e) {
+        report("ERR", uri.toString(), e.getClass().getSimpleName() + ": " + e.getMessage());
+        failed.incrementAndGet();
+    }
+
+    private static void report(Reply reply, URI uri) {
+        report(String.valueOf(reply.getStatus()), uri.toString(), reply.getMessage());
+    }
+
+    private static void report(String status, String uri, String meta) {
+        System.out.println(status + " " + uri + " " + meta); // println is synchronized, lines don't interleave
+    }
+
+    /**
+     * Per host:port fetch limit, plus the time until which the host asked us (44) to wait.
+     */
+    private final class Host {
+        private final Semaphore permits = new Semaphore(perHost);
+        private volatile long notBefore = 0;
+
+        void acquire() throws InterruptedException {
+            long wait;
+            while ((wait = notBefore - System.currentTimeMillis()) > 0) {
+                Thread.sleep(wait);
+            }
+            permits.acquire();
+            try {
+                total.acquire();
+            } catch (InterruptedException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        void release() {
+            total.release();
+            permits.release();
+        }
+
+        void slowDown(long seconds) {
+            System.err.println("Status 44: Slow down. Pausing host for " + seconds + " seconds...");
+            long until = System.currentTimeMillis() + seconds * 1000L;
+            synchronized (this) {
+                notBefore = Math.max(notBefore, until);
+            }
+        }
+    }
+
+    /**
+     * Where successful bodies end up. Called from many threads at once.
+     */
+    public interface Sink extends AutoCloseable {
+        void write(URI uri, InputStream body) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * Maps a URI to a relative file path: host[_port]/path, with the query (if any) folded into the file name.
+     * Paths can't collide with each other's directories: a last segment without an extension ("/docs", "/docs/")
+     * is a directory holding index.gmi, so "/docs" and "/docs/x.gmi" both fit, and a directory whose name has a dot
+     * gets a "+" (which file names never have, see safe), so "/v1.2" and "/v1.2/x.gmi" fit too.
+     */
+    static String relativePath(URI uri) {
+        String path = (uri.getPath() == null || uri.getPath().isEmpty()) ? "/" : uri.getPath();
+        final List<String> segments = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                continue; // never climb out of the output
+            }
+            segments.add(segment);
+        }
+        String leaf = (path.endsWith("/") || segments.isEmpty()) ? "" : segments.remove(segments.size() - 1);
+        if (uri.getQuery() != null) {
+            leaf += "_" + uri.getQuery();
+        }
+        leaf = safe(leaf);
+        if (leaf.indexOf('.') < 0) {
+            if (!leaf.isEmpty() && !leaf.equals("_")) {
+                segments.add(leaf);
+            }
+            leaf = "index.gmi";
+        }
+        StringBuilder sb = new StringBuilder(uri.getHost().toLowerCase());
+        if (uri.getPort() != -1) {
+            sb.append('_').append(uri.getPort());
+        }
+        for (String segment : segments) {
+            final String dir = safe(segment);
+            sb.append('/').append(dir).append(dir.indexOf('.') >= 0 ? "+" : "");
+        }
+        return sb.append('/').append(leaf).toString();
+    }
+
+    private static String safe(String segment) {
+        return segment.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Writes each body to DIR/host/path.
+     */
+    public static final class DirectorySink implements Sink {
+        private final Path root;
+        private final Set<String> names = ConcurrentHashMap.newKeySet(); // a redirect can land on a page we already have
+
+        public DirectorySink(Path root) throws IOException {
+            this.root = Files.createDirectories(root);
+        }
+
+        @Override
+        public void write(URI uri, InputStream body) throws IOException {
+            String name = relativePath(uri);
+            if (!names.add(name)) {
+                return;
+            }
+            try {
+                Path file = root.resolve(name);
+                Files.createDirectories(file.getParent());
+                try (OutputStream os = Files.newOutputStream(file)) {
+                    body.transferTo(os);
+                }
+            } catch (IOException e) {
+                names.remove(name); // let a later fetch of the same page try again
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Writes each body as an entry of one zip file. Bodies are spooled to a temp file first,
+     * so the archive is only locked for a local copy, not for the whole download.
+     */
+    public static final class ZipSink implements Sink {
+        private final ZipOutputStream zip;
+        private final Set<String> names = new HashSet<>(); // guarded by zip; a redirect can land on a page we already have
+
+        public ZipSink(Path file) throws IOException {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            this.zip = new ZipOutputStream(Files.newOutputStream(file));
+        }
+
+        @Override
+        public void write(URI uri, InputStream body) throws IOException {
+            Path spool = Files.createTempFile("gemini-batch", ".part");
+            try {
+                Files.copy(body, spool, StandardCopyOption.REPLACE_EXISTING);
+                synchronized (zip) {
+                    String name = relativePath(uri);
+                    if (!names.add(name)) {
+                        return;
+                    }
+                    zip.putNextEntry(new ZipEntry(name));
+                    Files.copy(spool, zip);
+                    zip.closeEntry();
+                }
+            } finally {
+                Files.deleteIfExists(spool);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (zip) {
+                zip.close();
+            }
+        }
+    }
+}
@@ -1,14 +1,20 @@
 package gemini_lite;
+import java.io.BufferedOutputStream;
 import java.io.Console;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.util.Arrays;
 
 import gemini_lite.engine.ClientEngine;
 import gemini_lite.protocol.ProtocolSyntaxException;
 import gemini_lite.protocol.Reply;
 
 public class Client {
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
     final ClientEngine engine = new ClientEngine();
     private int redirectCount = 0;  // has to be under 6
     private URI currentUri;
@@ -27,14 +33,22 @@ public class Client {
      * Arguments:
      *   [0] URL - The Gemini URI to connect to
      *   [1] Input - Optional user text the server asks for
+     * or, to fetch many URIs at once: --batch <file|-> [options], see BatchClient
      */
     public static void main(String[] args) {
         // we need at least a URL -> if it's missing, print how to use it and wuit
         if (args.length < 1) {
             System.err.println("Usage: gemini_lite.Client <URL> [<input>]");
+            System.err.println("       gemini_lite.Client --batch <file|-> [--out <dir|file.zip>] [--crawl [depth]] [--per-host n] [--concurrency n] [--input text]");
             System.exit(1);
         }
         try {
+            if (args[0].equals("--batch")) {
+                final ClientEngine batchEngine = new ClientEngine();
+                configureProxy(batchEngine);
+                BatchClient.main(Arrays.copyOfRange(args, 1, args.length), batchEngine);
+                return;
+            }
             String url = args[0]; // first argument is always the URL
             String cmdLineInput; // optional second argument: text to send as "input" to the server
             if (args.length > 1) {
@@ -44,24 +58,7 @@ public class Client {
             }
 
             Client client = new Client(cmdLineInput);
-
-            String proxyEnv = System.getenv("GEMINI_LITE_PROXY");
-            if (proxyEnv != null && !proxyEnv.isEmpty()) {
-                final String[] parts = proxyEnv.split(":" , 2);
-                if (parts.length == 2) {
-                    try {
-                        final String ph = parts[0]; // proxy host name
-                        final int pp = Integer.parseInt(parts[1]); // proxy port number
-                        client.setProxy(ph, pp);
-                    } catch (NumberFormatException nfe) {
-                        System.err.println("Invalid GEMINI_LITE_PROXY port: " + proxyEnv);
-                        System.exit(0);
-                    }
-                } else {
-                    System.err.println("Invalid GEMINI_LITE_PROXY format, expected host:port");
-                    System.exit(0);
-                }
-            }
+            configureProxy(client.engine);
 
             client.run(new URI(url));
         } catch (ProtocolSyntaxException e){
@@ -73,6 +70,29 @@ public class Client {
         }
     }
 
+    /**
+     * Points engine at the proxy from GEMINI_LITE_PROXY (host:port), if it is set.
+     */
+    private static void configureProxy(ClientEngine engine) {
+        String proxyEnv = System.getenv("GEMINI_LITE_PROXY");
+        if (proxyEnv != null && !proxyEnv.isEmpty()) {
+            final String[] parts = proxyEnv.split(":" , 2);
+            if (parts.length == 2) {
+                try {
+                    final String ph = parts[0]; // proxy host name
+                    final int pp = Integer.parseInt(parts[1]); // proxy port number
+                    engine.setProxy(ph, pp);
+                } catch (NumberFormatException nfe) {
+                    System.err.println("Invalid GEMINI_LITE_PROXY port: " + proxyEnv);
+                    System.exit(0);
+                }
+            } else {
+                System.err.println("Invalid GEMINI_LITE_PROXY format, expected host:port");
+                System.exit(0);
+            }
+        }
+    }
+
     public void run(URI initialUri) throws Exception {
         this.currentUri = initialUri;
 
@@ -135,7 +155,7 @@ public class Client {
     /**
      * Status 2x: Success
      * Display the response body
-     * If the content is Gemini text format, colorize it for readability.
+     * If the content is Gemini text format, colorize it for readability (unless NO_COLOR is set).
      * Otherwise, stream binary data as-is (images, documents, etc).
      */
     private boolean handleSuccess(Reply reply) throws IOException {
@@ -145,22 +165,15 @@ public class Client {
             throw new IOException("The response body is null.");
         }
 
+        // one big buffer in front of stdout, flushed once at the end instead of once per line
+        final OutputStream stdout = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), OUTPUT_BUFFER_SIZE);
         if (reply.getMessage().startsWith("text/gemini")) {
-            try (java.io.BufferedReader br = new java.io.BufferedReader(new java.io.InputStreamReader(responseBody))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    System.out.println(colorizeGemtextLine(line));
-                }
-            }
+            final boolean color = System.getenv("NO_COLOR") == null; // https://no-color.org
+            new GemtextRenderer(stdout, color, System.out.charset()).render(responseBody);
         } else {
-            byte[] buffer = new byte[4096]; // if its non-gemtext copy the raw bytes directly to stdout
-            int bytesRead;
-
-            while ((bytesRead = responseBody.read(buffer)) != -1) {
-                System.out.write(buffer, 0, bytesRead);
-            }
-            System.out.flush();
+            responseBody.transferTo(stdout); // if its non-gemtext copy the raw bytes directly to stdout
         }
+        stdout.flush();
         System.exit(0); // client exits
         return false;
     }
@@ -224,38 +237,4 @@ public class Client {
         return false;
     }
 
-    /**
-     * Apply terminal colors to Gemini text markup for prettier display ⋆˚✿˖° 𐙚 ₊ ⊹ ♡.
-     */
-    private String colorizeGemtextLine(String line) {
-        final String RESET = "\u001B[0m";
-        final String C054 = "\u001B[38;5;54m";
-        final String C060 = "\u001B[38;5;60m";
-        final String C066 = "\u001B[38;5;66m";
-        final String C072 = "\u001B[38;5;72m";
-        final String C078 = "\u001B[38;5;78m";
-        final String C084 = "\u001B[38;5;84m";
-
-        if (line.startsWith("###")){
-            return C066 + line + RESET;
-        }
-        if (line.startsWith("##")){
-            return C060 + line + RESET;
-        }
-        if (line.startsWith("#")){
-            return C054 + line + RESET;
-        }
-        if (line.startsWith("=>")){
-            return C072 + line + RESET;
-        }
-        if (line.startsWith("*")){
-            return C078 + line + RESET;
-        }
-        if (line.startsWith(">")){
-            return C084 + line + RESET;
-        }
-        return line;
-    }
-
 }
-
@@ -0,0 +1,134 @@
+package gemini_lite;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams a text/gemini body to the terminal, colouring headings, links, list items and quotes ⋆˚✿˖° 𐙚 ₊ ⊹ ♡.
+ * Works on bytes: the line markers are all ASCII, so the line type is found without decoding anything,
+ * and the colour codes are constant byte arrays. Text is only decoded (as UTF-8, what gemtext is)
+ * when the terminal uses a different charset. Nothing is flushed here; the caller flushes once at the end.
+ */
+final class GemtextRenderer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] RESET = ascii("\u001B[0m");
+    private static final byte[] C054 = ascii("\u001B[38;5;54m"); // #
+    private static final byte[] C060 = ascii("\u001B[38;5;60m"); // ##
+    private static final byte[] C066 = ascii("\u001B[38;5;66m"); // ###
+    private static final byte[] C072 = ascii("\u001B[38;5;72m"); // =>
+    private static final byte[] C078 = ascii("\u001B[38;5;78m"); // *
+    private static final byte[] C084 = ascii("\u001B[38;5;84m"); // >
+
+    private final OutputStream out;
+    private final boolean color;
+    private final Charset target; // null -> terminal is UTF-8, copy the bytes as they are
+    private final byte[] newline;
+
+    /**
+     * @param out where to write, should be buffered
+     * @param color false to pass the body through untouched
+     * @param terminal charset the output is read in
+     */
+    GemtextRenderer(OutputStream out, boolean color, Charset terminal) {
+        this.out = out;
+        this.color = color;
+        this.target = StandardCharsets.UTF_8.equals(terminal) ? null : terminal;
+        this.newline = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * renders body until EOF
+     * @param body the text/gemini bytes
+     */
+    void render(InputStream body) throws IOException {
+        if (!color) { // no-colour mode: nothing to classify, just copy
+            body.transferTo(out);
+            return;
+        }
+        byte[] buf = new byte[BUFFER_SIZE];
+        int start = 0; // first byte of the current (unfinished) line
+        int end = 0;   // end of the valid bytes
+        while (true) {
+            if (end == buf.length) { // make room: drop finished lines, or grow for a very long line
+                if (start > 0) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else {
+                    byte[] bigger = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, bigger, 0, end);
+                    buf = bigger;
+                }
+            }
+            int n = body.read(buf, end, buf.length - end);
+            if (n == -1) {
+                break;
+            }
+            int scan = end;
+            end += n;
+            for (int i = scan; i < end; i++) {
+                if (buf[i] == '\n') {
+                    writeLine(buf, start, i);
+                    start = i + 1;
+                }
+            }
+            if (start == end) {
+                start = end = 0;
+            }
+        }
+        if (start < end) { // last line without a newline
+            writeLine(buf, start, end);
+        }
+    }
+
+    private void writeLine(byte[] buf, int from, int to) throws IOException {
+        if (to > from && buf[to - 1] == '\r') {
+            to--;
+        }
+        byte[] prefix = colorFor(buf, from, to - from);
+        if (prefix != null) {
+            out.write(prefix);
+        }
+        if (target == null) {
+            out.write(buf, from, to - from);
+        } else {
+            out.write(new String(buf, from, to - from, StandardCharsets.UTF_8).getBytes(target));
+        }
+        if (prefix != null) {
+            out.write(RESET);
+        }
+        out.write(newline);
+    }
+
+    private static byte[] colorFor(byte[] buf, int from, int length) {
+        if (length == 0) {
+            return null;
+        }
+        switch (buf[from]) {
+            case '#':
+                if (length >= 3 && buf[from + 1] == '#' && buf[from + 2] == '#') {
+                    return C066;
+                }
+                if (length >= 2 && buf[from + 1] == '#') {
+                    return C060;
+                }
+                return C054;
+            case '=':
+                return (length >= 2 && buf[from + 1] == '>') ? C072 : null;
+            case '*':
+                return C078;
+            case '>':
+                return C084;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package gemini_lite;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import gemini_lite.protocol.CapsuleArchive;
+
+/**
+ * Build-time tool: packs a document root into one capsule archive that the Server serves from memory
+ */
+public class Packer {
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: java gemini_lite.Packer <directory> <archive.gla>");
+            System.exit(1);
+        }
+        final Path root = Paths.get(args[0]);
+        final Path archive = Paths.get(args[1]);
+        final long start = System.nanoTime();
+        final int entries = CapsuleArchive.pack(root, archive);
+        System.err.printf("Packed %d paths from %s into %s in %.2fs%n", entries, root, archive, (System.nanoTime() - start) / 1e9);
+    }
+}
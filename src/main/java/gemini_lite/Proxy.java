@@ -1,7 +1,14 @@
 package gemini_lite;
 
+import java.net.InetAddress;
+import java.util.Arrays;
+
 import gemini_lite.engine.ClientEngine;
+import gemini_lite.engine.HostResolver;
+import gemini_lite.protocol.HedgePolicy;
+import gemini_lite.protocol.ProxyCache;
 import gemini_lite.protocol.ProxyRequestHandler;
+import gemini_lite.protocol.UpstreamPool;
 /**
  * Proxy server entry point for the Gemini Lite: : handles incoming requests
  * through a ProxyRequestHandler, manages client communication to a ClientEngine.
@@ -15,6 +22,27 @@ import gemini_lite.protocol.ProxyRequestHandler;
 	public static void main(String[] args) throws Exception {
 		final int port = (args.length > 0) ? Integer.parseInt(args[0]) : 1959; // determine the port: use provided argument or default to 1959
 		final ClientEngine engine = new ClientEngine();
-		new Server(port, new ProxyRequestHandler(engine)).run(); // create and start the server
+		engine.setTimeouts(Server.envInt("GEMINI_LITE_CONNECT_TIMEOUT_MS", 5000), 5000); // connect budget over all upstream addresses
+		engine.setResolver(new HostResolver(InetAddress::getAllByName, Server.envInt("GEMINI_LITE_DNS_TTL", 30) * 1000L,
+				Server.envInt("GEMINI_LITE_DNS_NEGATIVE_TTL", 5) * 1000L, Server.envInt("GEMINI_LITE_DNS_CACHE_SIZE", 10_000)));
+		final int cacheMb = Server.envInt("GEMINI_LITE_PROXY_CACHE_MB", 0); // 0 -> no cache
+		final int cacheTtl = Server.envInt("GEMINI_LITE_PROXY_CACHE_TTL", 60); // seconds
+		final ProxyCache cache = (cacheMb > 0) ? new ProxyCache(cacheMb * 1024L * 1024L, cacheTtl * 1000L) : null;
+		final ProxyRequestHandler handler = new ProxyRequestHandler(engine, cache);
+		final int hedgePercentile = Server.envInt("GEMINI_LITE_HEDGE_PERCENTILE", 0); // 0 -> no hedging
+		if (hedgePercentile > 0) {
+			handler.setHedging(new HedgePolicy(hedgePercentile / 100.0, Server.envInt("GEMINI_LITE_HEDGE_BUDGET", 10) / 100.0));
+		}
+		final String backends = System.getenv("GEMINI_LITE_BACKENDS"); // "host:port[*weight],..." -> front a pool instead of proxying anywhere
+		if (backends != null && !backends.isBlank()) {
+			final UpstreamPool pool = new UpstreamPool(Arrays.asList(backends.split(",")));
+			pool.startHealthChecks(engine, Server.envInt("GEMINI_LITE_HEALTH_INTERVAL_MS", 2000));
+			handler.setPool(pool);
+			System.err.println("Backends: " + pool);
+		}
+		final Server server = new Server(port, handler); // create and start the server
+		handler.setMetrics(server.getMetrics()); // upstream latency per host shows up next to the server's own numbers
+		server.configureFromEnvironment();
+		server.run();
 	}
 }
@@ -7,10 +7,27 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import gemini_lite.engine.ClientEngine;
+import gemini_lite.engine.Listeners;
+import gemini_lite.engine.NioServerEngine;
 import gemini_lite.protocol.*;
 
 
@@ -18,9 +35,35 @@ import gemini_lite.protocol.*;
  * Can act as a file-serving server or as a proxy depending on the handler type
  */
 public class Server {
+    /**
+     * How connections are served:
+     * BLOCKING -> one pool thread per connection (the original engine)
+     * NIO -> a few selector threads own the sockets, handlers run on a worker pool
+     * VIRTUAL -> one virtual thread per connection, capped by maxConnections (extra clients get 44)
+     */
+    public enum Mode { BLOCKING, NIO, VIRTUAL }
+
+    private static final int SLOW_DOWN_SECONDS = 1; // what we tell clients to wait when we are full
+    private static final int REJECT_LINGER_MS = 200; // how long a rejected client gets to finish sending its request
+    private static final int REJECT_DRAIN_BYTES = 4096; // a request line is at most 1026 bytes, anything past this is not a client
+
     private final int port; // port to listen on
-    private final RequestHandler handler;
+    private RequestHandler handler;
     private final boolean isProxy; // as it can also run as a proxy, flag it if it does
+    private final ServerMetrics metrics = new ServerMetrics();
+    private Mode mode = Mode.BLOCKING;
+    private int eventLoops = Runtime.getRuntime().availableProcessors(); // only used in NIO mode
+    private int workerThreads = 32; // pool size for the blocking engine, handler pool size for NIO
+    private int maxConnections = 10000; // only used in VIRTUAL mode
+    private int acceptors = 1; // threads calling accept()
+    private boolean reusePort = false; // one SO_REUSEPORT listener per acceptor instead of a shared one
+    private int backlog = 50; // pending connections per listener, Java's default
+    private AccessLog accessLog; // null -> no access log
+    private RateLimiter rateLimiter; // null -> no per-client limit
+    // total time a connection may spend in each phase, however the time is spread over reads and writes
+    private long headerTimeoutMs = 10_000;
+    private long handlerTimeoutMs = 30_000;
+    private long bodyTimeoutMs = 300_000;
 
     public Server(int port, RequestHandler handler) {
         this.port = port;
@@ -28,54 +71,302 @@ public class Server {
         this.isProxy = handler instanceof ProxyRequestHandler; // if the handler is a ProxyRequestHandler, the server treats itself as a proxy
     }
 
+    public void setMode(Mode mode) {
+        if (mode == null) throw new NullPointerException("mode");
+        this.mode = mode;
+    }
+
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = eventLoops;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * more acceptor threads, for connection storms where a single accept() loop is the bottleneck
+     * @param acceptors threads accepting connections (in NIO mode: handing them to the event loops)
+     * @param reusePort give each acceptor its own SO_REUSEPORT listener on the port, so the kernel spreads
+     *                  connections over them instead of all acceptors contending for one queue
+     */
+    public void setAcceptors(int acceptors, boolean reusePort) {
+        this.acceptors = Math.max(1, acceptors);
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * @param backlog connections the kernel queues per listener before they are accepted
+     */
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * @param accessLog where to log every finished request, null for none
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * deadlines for the phases of a connection, as total elapsed time; a connection past one is closed
+     * @param headerTimeoutMs until the request line is complete
+     * @param handlerTimeoutMs for the handler to produce a reply (the client gets 40 when it doesn't)
+     * @param bodyTimeoutMs for sending the header and body
+     */
+    public void setTimeouts(long headerTimeoutMs, long handlerTimeoutMs, long bodyTimeoutMs) {
+        this.headerTimeoutMs = headerTimeoutMs;
+        this.handlerTimeoutMs = handlerTimeoutMs;
+        this.bodyTimeoutMs = bodyTimeoutMs;
+    }
+
+    /**
+     * @param rateLimiter per-client limit checked before a request reaches the handler, null for none
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * serve the metrics as a text/gemini page at statusUri, in front of the handler
+     * @param statusUri a path ("/.status") or, for a proxy, a full URL naming the proxy's own host
+     */
+    public void setStatusPage(String statusUri) {
+        this.handler = new StatusRequestHandler(statusUri, metrics, (isProxy ? "Proxy" : "Server") + " status", handler);
+    }
+
+    /**
+     * @return counters and latencies of this server, also registered over JMX once it runs
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Reads optional tuning from the environment (same idea as GEMINI_LITE_PROXY for the client):
+     *   GEMINI_LITE_ENGINE     blocking (default), nio or virtual
+     *   GEMINI_LITE_LOOPS      number of NIO event loop threads
+     *   GEMINI_LITE_WORKERS    number of worker threads
+     *   GEMINI_LITE_MAX_CONNECTIONS  concurrent connections allowed in virtual mode
+     *   GEMINI_LITE_ACCEPTORS  number of threads accepting connections
+     *   GEMINI_LITE_REUSEPORT  true: one SO_REUSEPORT listener per acceptor
+     *   GEMINI_LITE_BACKLOG    pending connections queued per listener
+     *   GEMINI_LITE_STATUS     path or URL of the metrics status page (off when unset)
+     *   GEMINI_LITE_ACCESS_LOG file to append the access log to, "-" for stderr (default) or "off"
+     *   GEMINI_LITE_ACCESS_LOG_POLICY  drop (default) or block when the access log can't keep up
+     *   GEMINI_LITE_ACCESS_LOG_BUFFER  entries the access log holds before that happens
+     *   GEMINI_LITE_HEADER_TIMEOUT_MS   total time allowed for sending the request line
+     *   GEMINI_LITE_HANDLER_TIMEOUT_MS  time allowed for the handler (file lookup, upstream fetch)
+     *   GEMINI_LITE_BODY_TIMEOUT_MS     total time allowed for sending the reply
+     *   GEMINI_LITE_RATE_LIMIT requests per second allowed per client IP (off when unset), more get "44 <seconds>"
+     *   GEMINI_LITE_RATE_BURST requests a client may make at once (default: the rate)
+     *   GEMINI_LITE_RATE_CLIENTS  client addresses tracked at most
+     * @throws IllegalArgumentException if a value can't be parsed
+     * @throws IOException if the access log file can't be opened
+     */
+    public void configureFromEnvironment() throws IOException {
+        String engine = System.getenv("GEMINI_LITE_ENGINE");
+        if (engine != null && !engine.isEmpty()) {
+            try {
+                setMode(Mode.valueOf(engine.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid GEMINI_LITE_ENGINE: " + engine);
+            }
+        }
+        eventLoops = envInt("GEMINI_LITE_LOOPS", eventLoops);
+        workerThreads = envInt("GEMINI_LITE_WORKERS", workerThreads);
+        maxConnections = envInt("GEMINI_LITE_MAX_CONNECTIONS", maxConnections);
+        setAcceptors(envInt("GEMINI_LITE_ACCEPTORS", acceptors), "true".equalsIgnoreCase(System.getenv("GEMINI_LITE_REUSEPORT")));
+        backlog = envInt("GEMINI_LITE_BACKLOG", backlog);
+        String status = System.getenv("GEMINI_LITE_STATUS");
+        if (status != null && !status.isEmpty()) {
+            setStatusPage(status.trim());
+        }
+        setTimeouts(envInt("GEMINI_LITE_HEADER_TIMEOUT_MS", (int) headerTimeoutMs),
+                envInt("GEMINI_LITE_HANDLER_TIMEOUT_MS", (int) handlerTimeoutMs),
+                envInt("GEMINI_LITE_BODY_TIMEOUT_MS", (int) bodyTimeoutMs));
+        final int rate = envInt("GEMINI_LITE_RATE_LIMIT", 0);
+        if (rate > 0) {
+            setRateLimiter(new RateLimiter(rate, envInt("GEMINI_LITE_RATE_BURST", rate), envInt("GEMINI_LITE_RATE_CLIENTS", 100_000)));
+        }
+        String log = System.getenv("GEMINI_LITE_ACCESS_LOG");
+        log = (log == null || log.isEmpty()) ? "-" : log.trim();
+        if (!log.equalsIgnoreCase("off")) {
+            String policy = System.getenv("GEMINI_LITE_ACCESS_LOG_POLICY");
+            final AccessLog.Policy logPolicy;
+            try {
+                logPolicy = (policy == null || policy.isEmpty()) ? AccessLog.Policy.DROP : AccessLog.Policy.valueOf(policy.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid GEMINI_LITE_ACCESS_LOG_POLICY: " + policy);
+            }
+            setAccessLog(AccessLog.open(log, logPolicy, envInt("GEMINI_LITE_ACCESS_LOG_BUFFER", 65536)));
+        }
+    }
+
+    static int envInt(String name, int defaultValue) { // also used by Proxy
+        String value = System.getenv(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed < 1) throw new NumberFormatException();
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
-            System.err.println("Usage: java gemini_lite.Server <directory> [<port>]");
+            System.err.println("Usage: java gemini_lite.Server <directory|archive.gla|table.routes> [<port>]");
             System.exit(1);
         }
 
         final String directory = args[0]; // serve files from the specified directory
         final int port = (args.length > 1) ? Integer.parseInt(args[1]) : 1958;
-        new Server(port, new gemini_lite.protocol.FileSystemRequestHandler(directory)).run();
+        final boolean watch = "true".equalsIgnoreCase(System.getenv("GEMINI_LITE_WATCH")); // index + watch the document root
+        final long cacheBytes = envInt("GEMINI_LITE_CACHE_MB", 0) * 1024L * 1024L; // 0 -> no cache
+        if (directory.endsWith(".routes") && Files.isRegularFile(Paths.get(directory))) { // many capsules, one process
+            final Server server = new Server(port, loadRoutes(Paths.get(directory), cacheBytes, watch));
+            server.configureFromEnvironment();
+            server.run();
+            return;
+        }
+        if (Files.isRegularFile(Paths.get(directory))) { // a packed capsule (see Packer): served from a memory mapping
+            final ArchiveRequestHandler handler = new ArchiveRequestHandler(CapsuleArchive.open(Paths.get(directory)));
+            if (watch) { // reload when the archive is replaced
+                handler.watch(Paths.get(directory));
+            }
+            final Server server = new Server(port, handler);
+            server.configureFromEnvironment();
+            server.run();
+            return;
+        }
+        DocumentIndex index = null;
+        if (watch) {
+            index = new DocumentIndex(Paths.get(directory));
+            index.start();
+        }
+        // with a watched index the cache is cleared on every change, so it never needs to stat files itself
+        final FileCache cache = (cacheBytes > 0) ? new FileCache(cacheBytes, watch ? Long.MAX_VALUE : 1000) : null;
+        final Server server = new Server(port, new gemini_lite.protocol.FileSystemRequestHandler(directory, cache, index));
+        server.configureFromEnvironment();
+        server.run();
     }
 
-    public void run() throws IOException { // main server loop: accept connections and hand them off to a thread pool
-        final ExecutorService exec = Executors.newFixedThreadPool(32); // fixed-size thread pool for handling client connections
-        try (final ServerSocket server = new ServerSocket(port)) {
-            System.err.println((isProxy ? "Proxy" : "Server") + " listening on port " + server.getLocalPort());
+    /**
+     * reads a route table, one route per line (blank lines and # comments are skipped):
+     *   host|*  prefix  target
+     * where target is a directory, an archive file (relative paths are relative to the table) or "proxy".
+     * Directories and archives are mounted at their prefix ("/docs/a" is "a" in the directory), the proxy gets
+     * requests unchanged. Every directory gets an equal share of the cache.
+     * @throws IOException if the table or an archive can't be read
+     * @throws IllegalArgumentException if a line is malformed or a target doesn't exist
+     */
+    static RoutingRequestHandler loadRoutes(Path table, long cacheBytes, boolean watch) throws IOException {
+        final List<String[]> lines = new ArrayList<>();
+        int directories = 0;
+        int number = 0;
+        for (String line : Files.readAllLines(table)) {
+            number++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] fields = line.split("\\s+");
+            if (fields.length != 3) {
+                throw new IllegalArgumentException(table + ":" + number + ": expected <host|*> <prefix> <target>");
+            }
+            if (Files.isDirectory(table.toAbsolutePath().resolveSibling(fields[2]))) {
+                directories++;
+            }
+            lines.add(fields);
+        }
+        final RoutingRequestHandler router = new RoutingRequestHandler();
+        ClientEngine engine = null; // one for all proxy routes
+        for (String[] fields : lines) {
+            final String host = fields[0].equals("*") ? null : fields[0];
+            if (fields[2].equals("proxy")) {
+                if (engine == null) {
+                    engine = new ClientEngine();
+                }
+                router.addRoute(host, fields[1], new ProxyRequestHandler(engine));
+                System.err.println("Route " + fields[0] + " " + fields[1] + " -> proxy");
+                continue;
+            }
+            final Path target = table.toAbsolutePath().resolveSibling(fields[2]);
+            if (Files.isRegularFile(target)) {
+                final ArchiveRequestHandler archive = new ArchiveRequestHandler(CapsuleArchive.open(target));
+                if (watch) {
+                    archive.watch(target);
+                }
+                router.addRoute(host, fields[1], archive, true);
+            } else if (Files.isDirectory(target)) {
+                DocumentIndex index = null;
+                if (watch) {
+                    index = new DocumentIndex(target);
+                    index.start();
+                }
+                final FileCache cache = (cacheBytes > 0) ? new FileCache(cacheBytes / directories, watch ? Long.MAX_VALUE : 1000) : null;
+                router.addRoute(host, fields[1], new FileSystemRequestHandler(target.toString(), cache, index), true);
+            } else {
+                throw new IllegalArgumentException("No such directory or archive: " + target);
+            }
+            System.err.println("Route " + fields[0] + " " + fields[1] + " -> " + target);
+        }
+        return router;
+    }
 
+    public void run() throws IOException { // main server loop: accept connections and hand them off to a thread pool
+        metrics.registerMBean((isProxy ? "Proxy-" : "Server-") + port);
+        if (mode == Mode.NIO) {
+            final NioServerEngine engine = new NioServerEngine(port, handler, isProxy ? "Proxy" : "Server", eventLoops, workerThreads, metrics);
+            engine.setAccessLog(accessLog);
+            engine.setRateLimiter(rateLimiter);
+            engine.setTimeouts(headerTimeoutMs, handlerTimeoutMs, bodyTimeoutMs);
+            engine.setAcceptors(acceptors, reusePort);
+            engine.setBacklog(backlog);
+            engine.run();
+            return;
+        }
+        final ExecutorService exec;
+        final Semaphore admission; // null means no limit (blocking mode queues in the pool instead)
+        if (mode == Mode.VIRTUAL) { // a virtual thread per connection, but never more than maxConnections at once
+            exec = Executors.newVirtualThreadPerTaskExecutor();
+            admission = new Semaphore(maxConnections);
+        } else {
+            exec = Executors.newFixedThreadPool(workerThreads); // fixed-size thread pool for handling client connections
+            admission = null;
+        }
+        final ConnectionWatchdog watchdog = new ConnectionWatchdog(metrics); // closes connections past their deadline
+        // channel-backed listeners: accepted sockets then have a SocketChannel, which file bodies are transferred to
+        final List<ServerSocketChannel> listeners = Listeners.open(port, acceptors, reusePort, backlog);
+        try {
+            System.err.println((isProxy ? "Proxy" : "Server") + " listening on port " + listeners.get(0).socket().getLocalPort()
+                    + (acceptors > 1 ? " (" + acceptors + " acceptors, " + listeners.size() + " listeners)" : ""));
 
             // close the server and threads when the JVM is shutting down
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 System.err.println("Shutdown requested: closing server socket and thread pool");
-                try {
-                    server.close();
-                } catch (IOException ignored) {
-                }
+                Listeners.closeAll(listeners);
                 exec.shutdownNow();
             }));
 
-            while (!exec.isShutdown()) { // keep taking new connections until the executor is shut down
-                try {
-                    final Socket socket = server.accept(); 
-                    exec.submit(() -> {
-                        try {
-                            socket.setSoTimeout(5000); // avoid hanging connections
-                            handleConnection(socket);
-                        } catch (Exception e) {
-                            System.err.println("Connection handler error: " + e.getMessage());
-                            try { socket.close(); } catch (IOException ignore) { }
-                        }
-                    });
-                } catch (SocketException se) {
-                    System.err.println("Server socket closed, exiting accept loop");
-                    break;
-                } catch (IOException e) {
-                    System.err.println("I/O error in accept(): " + e.getMessage());
-                    break;
-                }
+            for (int i = 1; i < acceptors; i++) { // with SO_REUSEPORT each acceptor has its own listener, else they share one
+                final ServerSocket server = listeners.get(i % listeners.size()).socket();
+                final Thread t = new Thread(() -> acceptLoop(server, exec, admission, watchdog), "acceptor-" + i);
+                t.setDaemon(true);
+                t.start();
             }
+            acceptLoop(listeners.get(0).socket(), exec, admission, watchdog); // acceptor 0 is the calling thread
         } finally {  // first try to shut down worker threads gracefully, then if that doesnt work -> force
+            Listeners.closeAll(listeners); // also stops the other acceptors
             exec.shutdown();
             try {
                 if (!exec.awaitTermination(5, TimeUnit.SECONDS)) exec.shutdownNow();
@@ -85,57 +376,248 @@ public class Server {
         }
     }
 
+    /**
+     * takes connections from one listener and hands them to the pool, until the listener or the pool is shut down
+     * several of these may run at once, on the same listener or on one each
+     */
+    private void acceptLoop(ServerSocket server, ExecutorService exec, Semaphore admission, ConnectionWatchdog watchdog) {
+        while (!exec.isShutdown()) { // keep taking new connections until the executor is shut down
+            try {
+                final Socket socket = server.accept();
+                final long acceptedAt = System.nanoTime();
+                if (admission != null && !admission.tryAcquire()) { // full: tell the client to come back later instead of queueing it
+                    metrics.connectionRejected();
+                    exec.submit(() -> rejectBusy(socket)); // not counted against admission, it only lingers briefly
+                    continue;
+                }
+                metrics.connectionQueued();
+                exec.submit(() -> {
+                    metrics.connectionStarted();
+                    metrics.record(ServerMetrics.Phase.WAIT, System.nanoTime() - acceptedAt);
+                    try {
+                        socket.setSoTimeout(5000); // avoid hanging connections
+                        handleConnection(socket, acceptedAt, watchdog.watch(socket));
+                    } catch (Exception e) {
+                        System.err.println("Connection handler error: " + e.getMessage());
+                        try { socket.close(); } catch (IOException ignore) { }
+                    } finally {
+                        metrics.connectionFinished();
+                        metrics.record(ServerMetrics.Phase.TOTAL, System.nanoTime() - acceptedAt);
+                        if (admission != null) admission.release();
+                    }
+                });
+            } catch (SocketException | ClosedChannelException se) { // the latter when another thread closed the listener
+                System.err.println("Server socket closed, exiting accept loop");
+                break;
+            } catch (IOException e) {
+                System.err.println("I/O error in accept(): " + e.getMessage());
+                break;
+            }
+        }
+    }
+
+    /**
+     * Answer "44 <seconds>" without serving the request and close the socket.
+     * Closing with the request still unread makes the kernel reset the connection, and the reset can
+     * overtake the reply on the client side, so we half-close and drain what the client sends first.
+     * The drain is bounded by REJECT_LINGER_MS and REJECT_DRAIN_BYTES, a client that stalls gets cut off.
+     */
+    private void rejectBusy(Socket socket) {
+        try (socket) {
+            final OutputStream out = socket.getOutputStream();
+            Reply.slowDown(SLOW_DOWN_SECONDS).writeTo(out);
+            out.flush();
+            socket.shutdownOutput(); // FIN after the reply, the client sees a clean end of stream
+            socket.setSoTimeout(REJECT_LINGER_MS);
+            final InputStream in = socket.getInputStream();
+            final byte[] discard = new byte[1024];
+            int drained = 0, n;
+            while (drained < REJECT_DRAIN_BYTES && (n = in.read(discard)) != -1) drained += n;
+        } catch (IOException ignored) { // client is gone or too slow, nothing more to tell it
+        }
+    }
+
     /**
      * Handle a single client connection:
      *  -> parse the Gemini request
      *  -> pass it to the RequestHandler
      *  -> send back the reply and optional body
+     *  -> log it
+     * Each phase has a deadline: the watchdog closes the socket when reading the request or sending the reply takes
+     * too long, and the handler's future is only waited on for so long.
      */
-    private void handleConnection(Socket socket) throws IOException {
-        try (socket; final InputStream in = socket.getInputStream(); final OutputStream out = socket.getOutputStream()) {
+    private void handleConnection(Socket socket, long acceptedAt, ConnectionWatchdog.Watch watch) throws IOException {
+        watch.phase(ServerMetrics.Phase.HEADER, headerTimeoutMs);
+        try (watch; socket; final InputStream in = new WireInputStream(socket.getInputStream()); final OutputStream out = socket.getOutputStream()) {
+            long phaseStart = System.nanoTime();
             final Request req;
             try {
                 req = Request.parse(in); // parse a request from the input stream
             } catch (ProtocolSyntaxException | URISyntaxException e) { // malformed request
-                final Reply bad = new Reply(59, "Bad request");
-                bad.writeTo(out);
-                out.flush();
+                sendBare(Reply.BAD_REQUEST, out);
+                logAccess(socket, null, Reply.BAD_REQUEST, acceptedAt);
                 return;
             } catch (IOException e) { // I/O error while reading
-                final Reply r = new Reply(59, "Read error");
-                r.writeTo(out);
-                out.flush();
+                sendBare(Reply.READ_ERROR, out);
+                logAccess(socket, null, Reply.READ_ERROR, acceptedAt);
                 return;
             }
+            metrics.record(ServerMetrics.Phase.HEADER, System.nanoTime() - phaseStart);
 
-            if (isProxy) {
-                System.err.println("Proxy received: " + req.getURI() + " from " + socket.getRemoteSocketAddress());
-            } else {
-                System.err.println("Server received: " + req.getURI() + " from " + socket.getRemoteSocketAddress());
+            if (rateLimiter != null) { // over the limit: answer before any file or upstream work
+                final int wait = rateLimiter.acquire(socket.getRemoteSocketAddress());
+                if (wait > 0) {
+                    final Reply slowDown = Reply.slowDown(wait);
+                    metrics.requestRateLimited();
+                    sendBare(slowDown, out);
+                    logAccess(socket, req.getURI(), slowDown, acceptedAt);
+                    return;
+                }
             }
 
+            phaseStart = System.nanoTime();
+            watch.pause(); // the handler deadline is enforced here, by not waiting any longer
+            final CompletableFuture<HandlerResult> pending = handler.handleAsync(req); // delegate the request to the handler
+            final HandlerResult result;
             try {
-                final gemini_lite.protocol.HandlerResult result = handler.handle(req);  // delegate the request to the handler
-                final Reply rep = result.getReply();
-                rep.writeTo(out);
+                result = pending.get(handlerTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                metrics.timedOut(ServerMetrics.Phase.HANDLER);
+                pending.thenAccept(HandlerResult::discard); // a late result is never sent, don't leak its body
+                sendBare(Reply.SERVER_ERROR_40, out);
+                logAccess(socket, req.getURI(), Reply.SERVER_ERROR_40, acceptedAt);
+                return;
+            } catch (ExecutionException | InterruptedException e) {
+                sendBare(Reply.SERVER_ERROR_40, out); // any other failure becomes a generic server error
+                System.err.println("Handler threw: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+                logAccess(socket, req.getURI(), Reply.SERVER_ERROR_40, acceptedAt);
+                return;
+            }
+            final Reply rep = result.getReply();
+            final long bodyStart = System.nanoTime();
+            watch.phase(ServerMetrics.Phase.BODY, bodyTimeoutMs);
+            metrics.record(ServerMetrics.Phase.HANDLER, bodyStart - phaseStart);
+            metrics.reply(rep.getStatus());
+            long sent = rep.headerLength();
 
-                if (result.hasBody()) { // if there's a body, stream it to the client in chunks
-                    try (final InputStream body = result.getBody()) {
-                        byte[] buffer = new byte[8192];
-                        int bytesRead;
-                        while ((bytesRead = body.read(buffer)) != -1) {
-                            out.write(buffer, 0, bytesRead);
-                        }
+            if (result.hasFileBody()) { // file bodies skip the user-space copy when the socket has a channel
+                rep.writeTo(out);
+                out.flush(); // the channel writes below bypass out, so the header has to be out of any buffer first
+                try (final FileChannel file = result.getFileChannel()) {
+                    sent += sendFile(file, result.getFileLength(), socket, out);
+                }
+            } else if (result.hasBufferBody()) { // in-memory (cached) bodies go out in the same write as the header
+                sent += sendBuffer(rep, result.getBufferBody(), socket, out);
+            } else if (result.hasBody()) { // if there's a body, stream it to the client in chunks
+                try (final InputStream body = result.getBody()) {
+                    byte[] buffer = new byte[8192];
+                    int off = 0;
+                    if (rep.headerLength() <= buffer.length / 2) { // header rides along with the first chunk
+                        off = rep.copyHeaderTo(buffer, 0);
+                    } else {
+                        rep.writeTo(out);
+                    }
+                    int bytesRead;
+                    while ((bytesRead = body.read(buffer, off, buffer.length - off)) != -1) {
+                        out.write(buffer, 0, off + bytesRead);
+                        sent += bytesRead;
+                        off = 0;
+                    }
+                    if (off > 0) { // empty body, the header still has to go out
+                        out.write(buffer, 0, off);
                     }
                 }
+            } else {
+                rep.writeTo(out);
+            }
+
+            out.flush();
+            metrics.bytesSent(sent);
+            final long now = System.nanoTime();
+            metrics.record(ServerMetrics.Phase.BODY, now - bodyStart);
+            if (accessLog != null) {
+                accessLog.log(socket.getRemoteSocketAddress(), req.getURI(), rep.getStatus(), sent, now - acceptedAt);
+            }
+        } catch (IOException e) {
+            if (!watch.expired()) { // closed by the watchdog: expected, and already counted
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Access log line for a reply without body (see sendBare).
+     */
+    private void logAccess(Socket socket, Object request, Reply reply, long acceptedAt) {
+        if (accessLog != null) {
+            accessLog.log(socket.getRemoteSocketAddress(), request, reply.getStatus(), reply.headerLength(), System.nanoTime() - acceptedAt);
+        }
+    }
 
-                out.flush();
-            } catch (Exception e) {
-                final Reply err = new Reply(40, "Server error"); // any other failure becomes a generic server error
-                err.writeTo(out);
-                out.flush();
-                System.err.println("Handler threw: " + e.getMessage());
+    /**
+     * Send a reply without body (errors) and count it.
+     */
+    private void sendBare(Reply reply, OutputStream out) throws IOException {
+        reply.writeTo(out);
+        out.flush();
+        metrics.reply(reply.getStatus());
+        metrics.bytesSent(reply.headerLength());
+    }
+
+    /**
+     * Send the header and an in-memory body with one gathering write (so a small page is one packet).
+     * A direct buffer is written to the SocketChannel as is, without a heap copy.
+     * @return body bytes sent
+     */
+    private long sendBuffer(Reply rep, ByteBuffer body, Socket socket, OutputStream out) throws IOException {
+        final long length = body.remaining();
+        final SocketChannel target = socket.getChannel();
+        if (target == null) {
+            byte[] bytes = new byte[rep.headerLength() + body.remaining()];
+            body.get(bytes, rep.copyHeaderTo(bytes, 0), body.remaining());
+            out.write(bytes);
+            return length;
+        }
+        final ByteBuffer[] parts = { rep.headerBuffer(), body };
+        while (body.hasRemaining() || parts[0].hasRemaining()) {
+            target.write(parts);
+        }
+        return length;
+    }
+
+    /**
+     * Send length bytes of file after the reply header.
+     * With a SocketChannel this is transferTo, which the OS turns into sendfile (no copy through the heap);
+     * every socket from our listeners has one. Sockets without a channel only have the OutputStream, which copies
+     * from a heap array whatever we read into, so they stream the file through a plain byte[] (a direct buffer would
+     * just add a copy).
+     * @return body bytes sent
+     */
+    private long sendFile(FileChannel file, long length, Socket socket, OutputStream out) throws IOException {
+        final SocketChannel target = socket.getChannel();
+        if (target == null) {
+            final byte[] buffer = new byte[64 * 1024];
+            final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long position = 0;
+            while (position < length) {
+                wrapped.clear().limit((int) Math.min(buffer.length, length - position));
+                final int n = file.read(wrapped, position);
+                if (n < 0) { // file got shorter since the reply was built
+                    break;
+                }
+                out.write(buffer, 0, n);
+                position += n;
+            }
+            return position;
+        }
+        long position = 0;
+        while (position < length) {
+            long sent = file.transferTo(position, length - position, target);
+            if (sent <= 0 && position >= file.size()) { // file got shorter since the reply was built
+                break;
             }
+            position += sent;
         }
+        return position;
     }
 }
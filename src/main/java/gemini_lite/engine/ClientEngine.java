@@ -1,11 +1,15 @@
 package gemini_lite.engine;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import gemini_lite.protocol.ProtocolSyntaxException;
 import gemini_lite.protocol.Reply;
@@ -15,11 +19,18 @@ import gemini_lite.protocol.Wire;
  * Main engine for making Gemini-Lite protocol requests as a client.
  * This class handles connecting to a server (optionally through a proxy),
  * formatting a request, sending it, and retrieving the response.
+ * sendRequest is the simple blocking API (one request at a time per engine);
+ * fetch is thread-safe and non-blocking, so one engine can have thousands of requests in flight.
+ * Host names go through a caching HostResolver, and connecting races all addresses of the host (see NioConnector).
  */
 public class ClientEngine {
     private static final int DEFAULT_PORT = 1958;
-    private String proxyHost = null; // proxy is optional so we can either have null as no proxy or default port when the proxy is there
-    private int proxyPort = DEFAULT_PORT;
+    private static final int DEFAULT_TIMEOUT_MS = 5000;
+    private volatile String proxyHost = null; // proxy is optional so we can either have null as no proxy or default port when the proxy is there
+    private volatile int proxyPort = DEFAULT_PORT;
+    private volatile int connectTimeoutMs = DEFAULT_TIMEOUT_MS;
+    private volatile int readTimeoutMs = DEFAULT_TIMEOUT_MS;
+    private volatile HostResolver resolver = HostResolver.shared();
     private InputStream lastReplyBody = null;
 
     /**
@@ -32,6 +43,24 @@ public class ClientEngine {
         this.proxyPort = port;
     }
 
+    /**
+     * @param resolver where host names are looked up (e.g. one with other TTLs, or a stub in tests)
+     */
+    public void setResolver(HostResolver resolver) {
+        if (resolver == null) throw new NullPointerException("resolver");
+        this.resolver = resolver;
+    }
+
+    /**
+     * Timeouts for requests.
+     * @param connectTimeoutMs time allowed to establish the connection, over all addresses of the host
+     * @param readTimeoutMs time allowed for the reply header, and between body reads
+     */
+    public void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
     /**
      * Sends a request to the provided Gemini-Lite URI and returns the server's reply.
      * @param uri the destination URI
@@ -39,6 +68,92 @@ public class ClientEngine {
      * @throws Exception in case something goes wrong (and a lot can go wrong (╥﹏╥) )
      */
     public Reply sendRequest(URI uri) throws Exception {
+        // if using a proxy, connect there; otherwise, connect directly to the server
+        final String proxy = proxyHost;
+        final String connectHost = (proxy != null) ? proxy : uri.getHost();
+        final int connectPort = (proxy != null) ? proxyPort : portOf(uri);
+
+        System.err.println("Connecting to " + connectHost + ":" + connectPort + (proxyHost != null ? " (via proxy)" : ""));
+
+        try {
+            final Response response = fetch(uri).get(); // same path as fetch, just waited for
+            this.lastReplyBody = response.getBody(); // save the reply
+            return response.getReply();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof SocketException se) {
+                throw new SocketException("Connection aborted while reading reply: " + se.getMessage() + ". Check that the server is still running.", se);
+            }
+            throw (cause instanceof Exception ex) ? ex : e;
+        }
+    }
+
+    /**
+     * Sends a request without blocking: connecting, sending and waiting for the reply all happen on a shared
+     * selector thread. Safe to call from many threads at once; nothing is stored on the engine.
+     * @param uri the destination URI
+     * @return completes with the reply and its streaming body (close the Response when done),
+     *         or exceptionally if the URI is invalid or the exchange fails or times out;
+     *         cancelling it abandons the request and closes its connection
+     */
+    public CompletableFuture<Response> fetch(URI uri) {
+        final String proxy = proxyHost;
+        return (proxy != null) ? fetch(uri, proxy, proxyPort) : fetch(uri, uri.getHost(), portOf(uri));
+    }
+
+    /**
+     * like fetch(uri), but connects to the given server whatever the URI's host (and any proxy setting) says,
+     * e.g. to one backend out of a pool that all serve the same capsule
+     * @param uri the URI to request, sent unchanged in the request line
+     * @param host server to connect to
+     * @param port its port
+     */
+    public CompletableFuture<Response> fetch(URI uri, String host, int port) {
+        try {
+            final String requestLine = requestLine(uri);
+            final NioConnector connector = NioConnector.shared();
+            final int connectTimeout = connectTimeoutMs;
+            final int readTimeout = readTimeoutMs;
+            final CompletableFuture<Response> result = new CompletableFuture<>();
+            // usually a cache hit, completed already; otherwise the lookup runs on a virtual thread, not the caller's
+            resolver.resolve(host).whenComplete((addresses, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                    return;
+                }
+                if (result.isDone()) { // cancelled while looking up
+                    return;
+                }
+                final List<InetSocketAddress> targets = new ArrayList<>(addresses.size());
+                for (InetAddress address : addresses) {
+                    targets.add(new InetSocketAddress(address, port));
+                }
+                final CompletableFuture<Response> exchange = connector.exchange(targets, requestLine, connectTimeout, readTimeout);
+                // not thenCompose: cancelling result has to reach the exchange, so the connection gets closed
+                result.whenComplete((r, e) -> {
+                    if (result.isCancelled()) {
+                        exchange.cancel(false);
+                    }
+                });
+                exchange.whenComplete((response, e) -> {
+                    if (e != null) {
+                        result.completeExceptionally(e);
+                    } else if (!result.complete(response)) {
+                        response.close();
+                    }
+                });
+            });
+            return result;
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * builds the CRLF-terminated request line for uri, checking it is a usable gemini-lite URI
+     * @throws IllegalArgumentException if the scheme or host is wrong
+     */
+    private static String requestLine(URI uri) {
         if (!"gemini-lite".equalsIgnoreCase(uri.getScheme())) { // enforces tyhat the scheme is gemini-lite
             throw new IllegalArgumentException("Unsupported or missing scheme: " + uri.getScheme());
         }
@@ -47,34 +162,15 @@ public class ClientEngine {
         if (host == null || host.isEmpty()) { // ensures that there IS a host
             throw new IllegalArgumentException("Missing host");
         }
-        final int port = (uri.getPort() == -1) ? DEFAULT_PORT : uri.getPort(); // if no port is given, use default one
+        final int port = portOf(uri);
         final String path = (uri.getPath() == null || uri.getPath().isEmpty()) ? "/" : uri.getPath(); // normalize to /
         final String query = (uri.getQuery() == null) ? "" : "?" + uri.getQuery(); // is there's a query, cool keep it; otherwise nothing
 
-        final String requestLine = "gemini-lite://" + host + (uri.getPort() != -1 ? (":" + port) : "") + path + query + Wire.CRLF;
-
-        // if using a proxy, connect there; otherwise, connect directly to the server
-        final String connectHost = (proxyHost != null) ? proxyHost : host;
-        final int connectPort = (proxyHost != null) ? proxyPort : port;
-
-        System.err.println("Connecting to " + connectHost + ":" + connectPort + (proxyHost != null ? " (via proxy)" : ""));
+        return "gemini-lite://" + host + (uri.getPort() != -1 ? (":" + port) : "") + path + query + Wire.CRLF;
+    }
 
-        try {
-            Socket s = new Socket(connectHost, connectPort);
-            s.setSoTimeout(5000); // don't hang forever, 5 sec timeout
-            final InputStream in = s.getInputStream(); // input stream for sending data
-            final OutputStream out = s.getOutputStream(); // output stream for receiving data
-
-            out.write(requestLine.getBytes(StandardCharsets.UTF_8)); // send a properyl formatted request
-            out.flush();
-            // parsing the server's response into a Reply object for easier handling
-            Reply reply = Reply.parse(in);
-            this.lastReplyBody = in; // save the reply
-            return reply;
-
-        } catch (SocketException se) {
-            throw new SocketException("Connection aborted while reading reply: " + se.getMessage() + ". Check that the server is still running.", se);
-        }
+    private static int portOf(URI uri) {
+        return (uri.getPort() == -1) ? DEFAULT_PORT : uri.getPort(); // if no port is given, use default one
     }
 
     /**
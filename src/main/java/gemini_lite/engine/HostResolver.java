@@ -0,0 +1,173 @@
+package gemini_lite.engine;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Name lookups for ClientEngine, cached with a TTL (failures too, for a shorter time).
+ * Lookups run on virtual threads, never on the caller's or the connector's thread, and requests for a name that is
+ * already being looked up wait for that lookup instead of starting another one.
+ * The lookup itself is pluggable, so tests can use a stub instead of the system resolver.
+ * Names come from clients (in a proxy, whatever URI they ask for), so expired entries are swept out now and then and
+ * the cache never holds more than maxEntries names; lookups beyond that still work, they just aren't cached.
+ */
+public class HostResolver {
+
+    /**
+     * Turns a host name into its addresses (InetAddress::getAllByName by default).
+     */
+    @FunctionalInterface
+    public interface Lookup {
+        InetAddress[] lookup(String host) throws UnknownHostException;
+    }
+
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
+    private static final long SWEEP_INTERVAL_MS = 10_000; // normal sweep of expired entries
+    private static final long FULL_SWEEP_INTERVAL_MS = 1_000; // at most once a second when the cache is full
+
+    private static final HostResolver SHARED = new HostResolver(InetAddress::getAllByName, 30_000, 5_000, DEFAULT_MAX_ENTRIES);
+
+    /**
+     * A lookup result (or one in flight), and until when it may be used.
+     */
+    private static final class Cached {
+        final CompletableFuture<List<InetAddress>> addresses;
+        volatile long expiresAt = Long.MAX_VALUE; // set once the lookup finishes
+
+        Cached(CompletableFuture<List<InetAddress>> addresses) {
+            this.addresses = addresses;
+        }
+    }
+
+    private final Lookup lookup;
+    private final long ttlMs;
+    private final long negativeTtlMs;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, Cached> cache = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+    private final ExecutorService lookups = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * a resolver using the system's lookups
+     * @param ttlMs how long found addresses are reused
+     * @param negativeTtlMs how long a failed lookup is remembered
+     */
+    public HostResolver(long ttlMs, long negativeTtlMs) {
+        this(InetAddress::getAllByName, ttlMs, negativeTtlMs, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param lookup what does the actual resolving
+     * @param ttlMs how long found addresses are reused
+     * @param negativeTtlMs how long a failed lookup is remembered (so an unknown host doesn't cost a lookup per request)
+     * @param maxEntries names cached at most
+     */
+    public HostResolver(Lookup lookup, long ttlMs, long negativeTtlMs, int maxEntries) {
+        if (lookup == null) throw new NullPointerException("lookup");
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1");
+        this.lookup = lookup;
+        this.ttlMs = ttlMs;
+        this.negativeTtlMs = negativeTtlMs;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the resolver ClientEngines use unless they are given another one (system lookups, 30s TTL, 5s for failures)
+     */
+    public static HostResolver shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param host name or address literal
+     * @return completes with the addresses in the order to try them (address families alternating, see order),
+     *         or exceptionally with UnknownHostException
+     */
+    public CompletableFuture<List<InetAddress>> resolve(String host) {
+        final String key = host.toLowerCase();
+        final long now = System.currentTimeMillis();
+        sweepIfDue(now);
+        Cached cached = cache.get(key);
+        if (cached != null && now < cached.expiresAt) {
+            return cached.addresses;
+        }
+        if (cached == null && cache.size() >= maxEntries) { // full even after sweeping: look it up without caching
+            return start(key).addresses;
+        }
+        cached = cache.compute(key, (k, old) -> (old != null && now < old.expiresAt) ? old : start(k));
+        return cached.addresses;
+    }
+
+    /**
+     * @return names currently cached (including failed and in-flight lookups)
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    // one thread at a time drops the entries that have expired (in-flight lookups never have)
+    private void sweepIfDue(long now) {
+        final long last = lastSweep.get();
+        final long due = cache.size() >= maxEntries ? FULL_SWEEP_INTERVAL_MS : SWEEP_INTERVAL_MS;
+        if (now - last < due || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        cache.values().removeIf(cached -> cached.expiresAt <= now);
+    }
+
+    /**
+     * forgets everything cached
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    private Cached start(String host) {
+        final CompletableFuture<List<InetAddress>> future = new CompletableFuture<>();
+        final Cached cached = new Cached(future);
+        lookups.execute(() -> {
+            try {
+                List<InetAddress> addresses = order(lookup.lookup(host));
+                if (addresses.isEmpty()) {
+                    throw new UnknownHostException(host);
+                }
+                cached.expiresAt = System.currentTimeMillis() + ttlMs;
+                future.complete(addresses);
+            } catch (Exception e) {
+                cached.expiresAt = System.currentTimeMillis() + negativeTtlMs;
+                future.completeExceptionally(e);
+            }
+        });
+        return cached;
+    }
+
+    /**
+     * interleaves address families, starting with the family of the first address (RFC 8305, section 4),
+     * so when one family is broken the next attempt already uses the other one
+     */
+    static List<InetAddress> order(InetAddress[] addresses) {
+        final List<InetAddress> first = new ArrayList<>();
+        final List<InetAddress> other = new ArrayList<>();
+        for (InetAddress a : addresses) {
+            if (first.isEmpty() || (a instanceof Inet6Address) == (first.get(0) instanceof Inet6Address)) {
+                first.add(a);
+            } else {
+                other.add(a);
+            }
+        }
+        final List<InetAddress> ordered = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), other.size()); i++) {
+            if (i < first.size()) ordered.add(first.get(i));
+            if (i < other.size()) ordered.add(other.get(i));
+        }
+        return List.copyOf(ordered);
+    }
+}
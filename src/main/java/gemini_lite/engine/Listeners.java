@@ -0,0 +1,66 @@
+package gemini_lite.engine;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens the listening sockets for the server engines.
+ * With SO_REUSEPORT every acceptor thread gets a listener of its own on the same port, each with its own backlog,
+ * and the kernel spreads incoming connections over them; without it the acceptors share one listener.
+ */
+public final class Listeners {
+    private Listeners() {
+    }
+
+    /**
+     * @param port port to listen on, 0 for any (all listeners then share the port the first one got)
+     * @param count listeners wanted, one per acceptor thread
+     * @param reusePort open count listeners with SO_REUSEPORT; ignored (one listener) where the platform lacks it
+     * @param backlog pending connections the kernel queues per listener (capped by net.core.somaxconn on Linux)
+     * @return the bound listeners, blocking mode, one or count of them
+     * @throws IOException if one can't be bound (those already bound are closed)
+     */
+    public static List<ServerSocketChannel> open(int port, int count, boolean reusePort, int backlog) throws IOException {
+        final List<ServerSocketChannel> listeners = new ArrayList<>();
+        try {
+            final ServerSocketChannel first = ServerSocketChannel.open();
+            listeners.add(first);
+            final boolean many = reusePort && count > 1;
+            if (many && !first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                System.err.println("SO_REUSEPORT not supported here, " + count + " acceptors share one listener");
+            } else if (many) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            first.bind(new InetSocketAddress(port), backlog);
+            if (many && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                final int bound = ((InetSocketAddress) first.getLocalAddress()).getPort();
+                for (int i = 1; i < count; i++) {
+                    final ServerSocketChannel listener = ServerSocketChannel.open();
+                    listeners.add(listener);
+                    listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    listener.bind(new InetSocketAddress(bound), backlog);
+                }
+            }
+            return listeners;
+        } catch (IOException | RuntimeException e) {
+            closeAll(listeners);
+            throw e;
+        }
+    }
+
+    /**
+     * closes every listener, ignoring errors (so the acceptor threads blocked in accept() return)
+     */
+    public static void closeAll(List<ServerSocketChannel> listeners) {
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
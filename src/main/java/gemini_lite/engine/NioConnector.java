@@ -0,0 +1,449 @@
+package gemini_lite.engine;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import gemini_lite.protocol.ProtocolSyntaxException;
+import gemini_lite.protocol.Reply;
+import gemini_lite.protocol.Wire;
+
+/**
+ * Shared selector thread that runs client exchanges without blocking: connect, send the request line,
+ * read the reply header, then stream the body into a queue the caller reads from.
+ * Connecting races the addresses of the host Happy-Eyeballs style (RFC 8305): the next address is tried when the
+ * previous one hasn't connected after a short delay (or failed), the first connection wins and the others are closed,
+ * so a dead first address costs 250ms instead of the whole connect timeout.
+ * Futures are completed on virtual threads so callers' follow-up work never runs on the selector thread.
+ */
+final class NioConnector {
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int HIGH_WATER = 256 * 1024; // stop reading from the socket when this much is queued
+    private static final int LOW_WATER = 64 * 1024;   // and start again once the reader got below this
+    private static final int ATTEMPT_DELAY_MS = 250;  // head start each address gets before the next one is tried
+
+    private static NioConnector shared;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ExecutorService callbacks = Executors.newVirtualThreadPerTaskExecutor();
+    private long nextAttemptTimer = Long.MAX_VALUE; // earliest nextAttemptAt of all exchanges, selector thread only
+
+    /**
+     * @return the connector all ClientEngines share, started on first use
+     */
+    static synchronized NioConnector shared() throws IOException {
+        if (shared == null) {
+            shared = new NioConnector();
+        }
+        return shared;
+    }
+
+    private NioConnector() throws IOException {
+        this.selector = Selector.open();
+        Thread t = new Thread(this::loop, "nio-connector");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * starts one exchange
+     * @param addresses where to connect (already resolved), in the order to try them
+     * @param requestLine the request line including CRLF
+     * @param connectTimeoutMs time allowed for connecting, over all addresses
+     * @param readTimeoutMs time allowed between reads (and for the reply header after connecting)
+     * @return completes with the reply and its streaming body, or exceptionally on connect/read errors;
+     *         cancelling it before the reply header is in closes the connection
+     */
+    CompletableFuture<Response> exchange(List<InetSocketAddress> addresses, String requestLine, int connectTimeoutMs, int readTimeoutMs) {
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        final Exchange ex = new Exchange(future, requestLine, readTimeoutMs, addresses);
+        execute(() -> {
+            try {
+                ex.deadline = System.currentTimeMillis() + connectTimeoutMs;
+                ex.startAttempt();
+            } catch (RuntimeException e) { // e.g. an unsupported address type
+                abort(ex, e);
+            }
+        });
+        future.whenComplete((r, e) -> {
+            if (future.isCancelled()) {
+                execute(ex::closeChannel); // queued after the start, so this also stops attempts that haven't begun
+            }
+        });
+        return future;
+    }
+
+    private void execute(Runnable task) { // run task on the selector thread
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void loop() {
+        while (true) {
+            try {
+                // wake up regularly to check deadlines, and in time to start the next connect attempt
+                selector.select(Math.max(1, Math.min(100, nextAttemptTimer - System.currentTimeMillis())));
+            } catch (IOException e) {
+                System.err.println("Connector selector error: " + e.getMessage());
+                return;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) { // never let one task take the thread (and every other exchange) down
+                    System.err.println("Connector task failed: " + e);
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Exchange ex = (Exchange) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                try {
+                    if (key.isConnectable()) {
+                        ex.onConnectable(key);
+                    } else if (key.isWritable()) {
+                        ex.onWritable();
+                    } else if (key.isReadable()) {
+                        ex.onReadable();
+                    }
+                } catch (IOException e) {
+                    ex.fail(e);
+                } catch (RuntimeException e) { // e.g. CancelledKeyException: only this exchange is lost
+                    abort(ex, e);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            List<Exchange> due = null; // acted on after the loop, starting an attempt registers a key
+            nextAttemptTimer = Long.MAX_VALUE;
+            for (SelectionKey key : selector.keys()) {
+                Exchange ex = (Exchange) key.attachment();
+                if (ex != null && (now > ex.deadline || now >= ex.nextAttemptAt)) {
+                    if (due == null) due = new ArrayList<>();
+                    due.add(ex);
+                } else if (ex != null) {
+                    nextAttemptTimer = Math.min(nextAttemptTimer, ex.nextAttemptAt);
+                }
+            }
+            if (due != null) {
+                for (Exchange ex : due) {
+                    try {
+                        if (now > ex.deadline) {
+                            ex.fail(new SocketTimeoutException(ex.channel == null ? "Timed out connecting"
+                                    : ex.body == null ? "Timed out waiting for reply" : "Timed out reading body"));
+                        } else if (now >= ex.nextAttemptAt) {
+                            ex.startAttempt();
+                        }
+                    } catch (RuntimeException e) {
+                        abort(ex, e);
+                    }
+                }
+            }
+        }
+    }
+
+    // fails ex after an unexpected exception on the selector thread, which goes on serving the other exchanges
+    private static void abort(Exchange ex, RuntimeException e) {
+        try {
+            ex.fail(new IOException("Connector error: " + e, e));
+        } catch (RuntimeException again) {
+            System.err.println("Connector could not fail an exchange: " + again);
+        }
+    }
+
+    /**
+     * One request/reply. Only the selector thread touches it, except the body stream, which has its own lock.
+     */
+    private final class Exchange {
+        private final CompletableFuture<Response> future;
+        private final ByteBuffer request;
+        private final ByteBuffer header = ByteBuffer.allocate(Wire.MAX_LINE_BYTES + 2);
+        private final int readTimeoutMs;
+        private final ArrayDeque<InetSocketAddress> untried; // addresses not attempted yet
+        private final List<SelectionKey> attempts = new ArrayList<>(); // connects in progress
+        private IOException lastConnectError;
+        private long nextAttemptAt = Long.MAX_VALUE; // when to start on the next address
+        private SocketChannel channel; // null until one attempt connected
+        private SelectionKey key;
+        private long deadline;
+        private BodyStream body; // null until the header is parsed
+
+        Exchange(CompletableFuture<Response> future, String requestLine, int readTimeoutMs, List<InetSocketAddress> addresses) {
+            this.future = future;
+            this.request = ByteBuffer.wrap(requestLine.getBytes(StandardCharsets.UTF_8));
+            this.readTimeoutMs = readTimeoutMs;
+            this.untried = new ArrayDeque<>(addresses);
+        }
+
+        // connect to the next address, next to the attempts already running; fail when none is left
+        void startAttempt() {
+            nextAttemptAt = Long.MAX_VALUE;
+            InetSocketAddress address;
+            while ((address = untried.poll()) != null) {
+                SocketChannel ch = null;
+                try {
+                    ch = SocketChannel.open();
+                    ch.configureBlocking(false);
+                    if (ch.connect(address)) {
+                        connected(ch.register(selector, 0, this));
+                        return;
+                    }
+                    attempts.add(ch.register(selector, SelectionKey.OP_CONNECT, this));
+                    if (!untried.isEmpty()) {
+                        nextAttemptAt = System.currentTimeMillis() + ATTEMPT_DELAY_MS;
+                        nextAttemptTimer = Math.min(nextAttemptTimer, nextAttemptAt);
+                    }
+                    return;
+                } catch (IOException e) { // e.g. no route for this family: go on with the next address right away
+                    lastConnectError = e;
+                    if (ch != null) {
+                        try { ch.close(); } catch (IOException ignore) { }
+                    }
+                }
+            }
+            if (attempts.isEmpty()) {
+                fail(lastConnectError != null ? lastConnectError : new ConnectException("No address to connect to"));
+            }
+        }
+
+        void onConnectable(SelectionKey attempt) {
+            try {
+                ((SocketChannel) attempt.channel()).finishConnect();
+            } catch (IOException e) { // this address is refused/unreachable: don't wait out the delay for the next
+                lastConnectError = e;
+                attempts.remove(attempt);
+                attempt.cancel();
+                try { attempt.channel().close(); } catch (IOException ignore) { }
+                startAttempt();
+                return;
+            }
+            connected(attempt);
+        }
+
+        // the winner: close the other attempts and send the request
+        private void connected(SelectionKey winner) {
+            attempts.remove(winner);
+            for (SelectionKey other : attempts) {
+                other.cancel();
+                try { other.channel().close(); } catch (IOException ignore) { }
+            }
+            attempts.clear();
+            untried.clear();
+            nextAttemptAt = Long.MAX_VALUE;
+            channel = (SocketChannel) winner.channel();
+            key = winner;
+            deadline = System.currentTimeMillis() + readTimeoutMs;
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        void onWritable() throws IOException {
+            channel.write(request);
+            if (!request.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void onReadable() throws IOException {
+            if (body != null) {
+                readBody();
+                return;
+            }
+            int n = channel.read(header);
+            if (n == -1) {
+                throw new EOFException("EOF before CRLF");
+            }
+            int lf = Wire.findLineEnd(header.array(), 0, header.position());
+            if (lf == -1) {
+                if (!header.hasRemaining()) {
+                    throw new ProtocolSyntaxException("Header line too long");
+                }
+                return;
+            }
+            Reply reply = Reply.fromHeaderLine(new String(header.array(), 0, lf - 1, StandardCharsets.UTF_8));
+            deadline = System.currentTimeMillis() + readTimeoutMs;
+            body = new BodyStream(this);
+            int leftover = header.position() - (lf + 1);
+            if (leftover > 0) { // body bytes that came in the same packet as the header
+                ByteBuffer first = ByteBuffer.allocate(leftover);
+                first.put(header.array(), lf + 1, leftover).flip();
+                body.offer(first);
+            }
+            final Response response = new Response(reply, body);
+            callbacks.execute(() -> {
+                if (!future.complete(response)) { // cancelled meanwhile: nobody will read it
+                    response.close();
+                }
+            });
+        }
+
+        private void readBody() throws IOException {
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            int n = channel.read(chunk);
+            if (n == -1) {
+                body.finish(null);
+                closeChannel();
+                return;
+            }
+            deadline = System.currentTimeMillis() + readTimeoutMs;
+            chunk.flip();
+            if (body.offer(chunk) > HIGH_WATER) { // reader is behind: stop reading until it catches up
+                key.interestOps(0);
+                deadline = Long.MAX_VALUE;
+            }
+        }
+
+        void resume() { // selector thread, called once the reader drained below LOW_WATER
+            if (key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+                deadline = System.currentTimeMillis() + readTimeoutMs;
+            }
+        }
+
+        void fail(IOException e) {
+            closeChannel();
+            if (body != null) {
+                body.finish(e);
+            } else {
+                callbacks.execute(() -> future.completeExceptionally(e));
+            }
+        }
+
+        void closeChannel() {
+            if (key != null) {
+                key.cancel();
+            }
+            for (SelectionKey attempt : attempts) {
+                attempt.cancel();
+                try { attempt.channel().close(); } catch (IOException ignore) { }
+            }
+            attempts.clear();
+            untried.clear();
+            nextAttemptAt = Long.MAX_VALUE;
+            deadline = Long.MAX_VALUE;
+            if (channel != null) {
+                try { channel.close(); } catch (IOException ignore) { }
+            }
+        }
+    }
+
+    /**
+     * Body bytes queued by the selector thread, read by whoever holds the Response.
+     */
+    private final class BodyStream extends InputStream {
+        private final Exchange exchange;
+        private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+        private int queued = 0;
+        private boolean paused = false;
+        private boolean done = false;
+        private IOException error;
+
+        BodyStream(Exchange exchange) {
+            this.exchange = exchange;
+        }
+
+        synchronized int offer(ByteBuffer chunk) {
+            chunks.add(chunk);
+            queued += chunk.remaining();
+            if (queued > HIGH_WATER) {
+                paused = true;
+            }
+            notifyAll();
+            return queued;
+        }
+
+        synchronized void finish(IOException e) {
+            done = true;
+            error = e;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            boolean wake;
+            int n;
+            synchronized (this) {
+                while (chunks.isEmpty() && !done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while reading body");
+                    }
+                }
+                if (chunks.isEmpty()) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    return -1;
+                }
+                ByteBuffer head = chunks.peek();
+                n = Math.min(len, head.remaining());
+                head.get(b, off, n);
+                if (!head.hasRemaining()) {
+                    chunks.poll();
+                }
+                queued -= n;
+                wake = paused && queued < LOW_WATER;
+                if (wake) {
+                    paused = false;
+                }
+            }
+            if (wake) {
+                execute(exchange::resume);
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return queued;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (!done) {
+                    done = true;
+                    chunks.clear();
+                    notifyAll();
+                }
+            }
+            execute(exchange::closeChannel);
+        }
+    }
+}
@@ -0,0 +1,547 @@
+package gemini_lite.engine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import gemini_lite.protocol.AccessLog;
+import gemini_lite.protocol.HandlerResult;
+import gemini_lite.protocol.ProtocolSyntaxException;
+import gemini_lite.protocol.RateLimiter;
+import gemini_lite.protocol.Reply;
+import gemini_lite.protocol.Request;
+import gemini_lite.protocol.RequestHandler;
+import gemini_lite.protocol.ServerMetrics;
+import gemini_lite.protocol.Wire;
+
+/**
+ * Non-blocking server engine: a few selector threads own all the sockets,
+ * so a slow client only costs a buffer and a selection key instead of a whole thread.
+ * Handlers are still blocking code, so they (and reads from their body streams) run on a worker pool;
+ * the event loops only touch the sockets (and file bodies, which go out with transferTo).
+ */
+public class NioServerEngine {
+    private static final int IDLE_TIMEOUT_MS = 5000; // no progress at all for this long closes the connection, like the blocking server's setSoTimeout
+    private static final int BUFFER_SIZE = 8192;
+
+    private final int port;
+    private final RequestHandler handler;
+    private final String name; // "Server" or "Proxy", only used for logging
+    private final int eventLoopCount;
+    private final ExecutorService workers;
+    private final ServerMetrics metrics;
+    private AccessLog accessLog; // null -> no access log
+    private RateLimiter rateLimiter; // null -> no per-client limit
+    private long headerTimeoutMs = 10_000; // total time per phase, see setTimeouts
+    private long handlerTimeoutMs = 30_000;
+    private long bodyTimeoutMs = 300_000;
+    private int acceptors = 1; // threads calling accept(), see setAcceptors
+    private boolean reusePort = false;
+    private int backlog = 50;
+
+    /**
+     * @param port port to listen on
+     * @param handler handler that every parsed request is dispatched to
+     * @param name what to call ourselves in log lines
+     * @param eventLoopCount number of selector threads
+     * @param workerCount number of threads running handlers and reading body streams
+     */
+    public NioServerEngine(int port, RequestHandler handler, String name, int eventLoopCount, int workerCount) {
+        this(port, handler, name, eventLoopCount, workerCount, new ServerMetrics());
+    }
+
+    /**
+     * same, recording into the given metrics (the Server's, so its status page and MBean see them)
+     */
+    public NioServerEngine(int port, RequestHandler handler, String name, int eventLoopCount, int workerCount, ServerMetrics metrics) {
+        if (handler == null) throw new NullPointerException("handler");
+        if (metrics == null) throw new NullPointerException("metrics");
+        this.port = port;
+        this.handler = handler;
+        this.name = name;
+        this.eventLoopCount = Math.max(1, eventLoopCount);
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workerCount));
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param accessLog where to log every finished request, null for none
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * deadlines for the phases of a connection, as total elapsed time (on top of the idle timeout);
+     * the event loops close connections past the header or body deadline, a handler past its deadline gets the client a 40
+     */
+    public void setTimeouts(long headerTimeoutMs, long handlerTimeoutMs, long bodyTimeoutMs) {
+        this.headerTimeoutMs = headerTimeoutMs;
+        this.handlerTimeoutMs = handlerTimeoutMs;
+        this.bodyTimeoutMs = bodyTimeoutMs;
+    }
+
+    /**
+     * @param rateLimiter per-client limit, checked on the event loop before a request is handed to a worker; null for none
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * @param acceptors threads accepting connections and handing them to the event loops
+     * @param reusePort give each acceptor its own SO_REUSEPORT listener instead of sharing one
+     */
+    public void setAcceptors(int acceptors, boolean reusePort) {
+        this.acceptors = Math.max(1, acceptors);
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * @param backlog connections the kernel queues per listener before they are accepted
+     */
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * accepts connections (on the calling thread, plus acceptors - 1 more) and spreads them round-robin over the event loops
+     * runs until the JVM shuts down or the listening socket is closed
+     */
+    public void run() throws IOException {
+        final EventLoop[] loops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        final List<ServerSocketChannel> listeners = Listeners.open(port, acceptors, reusePort, backlog);
+        try {
+            System.err.println(name + " listening on port " + listeners.get(0).socket().getLocalPort() + " (nio, " + loops.length + " event loops"
+                    + (acceptors > 1 ? ", " + acceptors + " acceptors, " + listeners.size() + " listeners" : "") + ")");
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.err.println("Shutdown requested: closing server socket and event loops");
+                Listeners.closeAll(listeners);
+                workers.shutdownNow();
+            }));
+
+            for (int i = 1; i < acceptors; i++) {
+                final ServerSocketChannel server = listeners.get(i % listeners.size());
+                final int first = i % loops.length; // so the acceptors don't all start on the same loop
+                final Thread t = new Thread(() -> acceptLoop(server, loops, first), "acceptor-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            acceptLoop(listeners.get(0), loops, 0);
+        } finally {
+            Listeners.closeAll(listeners);
+            for (EventLoop loop : loops) {
+                loop.shutdown();
+            }
+            workers.shutdown();
+            try {
+                if (!workers.awaitTermination(5, TimeUnit.SECONDS)) workers.shutdownNow();
+            } catch (InterruptedException ignored) {
+                workers.shutdownNow();
+            }
+        }
+    }
+
+    // takes connections from one listener until it is closed
+    private void acceptLoop(ServerSocketChannel server, EventLoop[] loops, int next) {
+        while (server.isOpen()) {
+            try {
+                final SocketChannel channel = server.accept();
+                loops[next].register(channel, System.nanoTime());
+                next = (next + 1) % loops.length;
+            } catch (ClosedChannelException ce) {
+                System.err.println("Server socket closed, exiting accept loop");
+                break;
+            } catch (IOException e) {
+                System.err.println("I/O error in accept(): " + e.getMessage());
+                break;
+            }
+        }
+    }
+
+    /**
+     * One selector thread. Other threads never touch its keys directly, they hand it tasks instead.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) { // run task on this loop's thread
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel, long acceptedAt) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    Connection conn = new Connection(channel, this, acceptedAt);
+                    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                } catch (IOException e) {
+                    try { channel.close(); } catch (IOException ignore) { }
+                }
+            });
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(1000); // wake up at least once a second to sweep idle connections
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection conn = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                conn.onReadable();
+                            } else if (key.isWritable()) {
+                                conn.onWritable();
+                            }
+                        } catch (IOException e) {
+                            conn.close();
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    for (SelectionKey key : selector.keys()) {
+                        Connection conn = (Connection) key.attachment();
+                        if (conn != null && conn.isExpired(now)) {
+                            conn.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Event loop error: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try { selector.close(); } catch (IOException ignore) { }
+            }
+        }
+    }
+
+    /**
+     * State of one client connection: read the request line, hand it to a worker, then write the reply.
+     * Fields are only touched by one thread at a time; ownership passes through the loop's task queue.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(Wire.MAX_LINE_BYTES + 2); // request line + CRLF
+        private ByteBuffer out;
+        private InputStream body; // null once there is nothing left to stream
+        private FileChannel file; // file-backed body, sent with transferTo straight from the loop
+        private ByteBuffer buffered; // in-memory body, written straight from the loop
+        private long filePosition;
+        private long fileLength;
+        private volatile boolean busy = false; // a worker owns the connection, don't time it out
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile long deadline = lastActivity + headerTimeoutMs; // end of the current phase (currentTimeMillis)
+        // metrics: when each phase started (System.nanoTime), the reply status and what was written
+        private final long acceptedAt;
+        private final long registeredAt = System.nanoTime();
+        private long queuedAt;
+        private long bodyStart;
+        private int status; // 0 until a reply is chosen
+        private long sent;
+        private Object request; // parsed URI, for the access log
+        private boolean closed = false;
+
+        Connection(SocketChannel channel, EventLoop loop, long acceptedAt) {
+            this.channel = channel;
+            this.loop = loop;
+            this.acceptedAt = acceptedAt;
+            metrics.connectionOpened();
+        }
+
+        // loop thread: true if the connection went quiet or ran past its phase deadline (counted as a timeout)
+        boolean isExpired(long now) {
+            if (busy || (now - lastActivity <= IDLE_TIMEOUT_MS && now <= deadline)) {
+                return false;
+            }
+            metrics.timedOut(status == 0 ? ServerMetrics.Phase.HEADER : ServerMetrics.Phase.BODY);
+            return true;
+        }
+
+        // loop thread: collect bytes until the request line is complete
+        void onReadable() throws IOException {
+            int n = channel.read(in);
+            if (n == -1) { // client went away before sending CRLF
+                respond(Reply.READ_ERROR);
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+
+            final int lf;
+            try {
+                lf = Wire.findLineEnd(in.array(), 0, in.position());
+            } catch (ProtocolSyntaxException e) {
+                respond(Reply.BAD_REQUEST);
+                return;
+            }
+            if (lf == -1) {
+                if (!in.hasRemaining()) { // full buffer without a line end means the line is too long
+                    respond(Reply.BAD_REQUEST);
+                }
+                return;
+            }
+
+            final String line = new String(in.array(), 0, lf - 1, StandardCharsets.UTF_8);
+            key.interestOps(0);
+            if (rateLimiter != null) { // over the limit: answer from the loop, the request never reaches a worker
+                final int wait = rateLimiter.acquire(channel.socket().getRemoteSocketAddress());
+                if (wait > 0) {
+                    metrics.record(ServerMetrics.Phase.HEADER, System.nanoTime() - registeredAt);
+                    metrics.requestRateLimited();
+                    request = line;
+                    respond(Reply.slowDown(wait));
+                    return;
+                }
+            }
+            busy = true;
+            queuedAt = System.nanoTime();
+            metrics.record(ServerMetrics.Phase.HEADER, queuedAt - registeredAt);
+            metrics.requestQueued();
+            workers.execute(() -> dispatch(line));
+        }
+
+        // worker thread: parse, run the handler and prepare the first chunk to send
+        private void dispatch(String line) {
+            final long handlerStart = System.nanoTime();
+            metrics.requestStarted();
+            metrics.record(ServerMetrics.Phase.WAIT, handlerStart - queuedAt);
+            final Request req;
+            try {
+                req = Request.fromHeaderLine(line);
+            } catch (ProtocolSyntaxException | URISyntaxException e) { // malformed request
+                respond(Reply.BAD_REQUEST);
+                return;
+            }
+            request = req.getURI();
+
+            // async so a handler that waits (e.g. a proxy retry after 44) gives this worker back meanwhile
+            final CompletableFuture<HandlerResult> pending = handler.handleAsync(req);
+            // copy: the timeout must not fail a future the handler may share with other requests
+            pending.copy().orTimeout(handlerTimeoutMs, TimeUnit.MILLISECONDS).whenComplete((result, error) -> {
+                metrics.record(ServerMetrics.Phase.HANDLER, System.nanoTime() - handlerStart);
+                if (error != null) {
+                    Throwable cause = (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error;
+                    if (cause instanceof TimeoutException) {
+                        metrics.timedOut(ServerMetrics.Phase.HANDLER);
+                        pending.thenAccept(HandlerResult::discard); // a late result is never sent, don't leak its body
+                    } else {
+                        System.err.println("Handler threw: " + cause.getMessage());
+                    }
+                    respond(Reply.SERVER_ERROR_40);
+                    return;
+                }
+                startReply(result);
+            });
+        }
+
+        // whichever thread completed the handler: prepare the first chunk to send
+        private void startReply(HandlerResult result) {
+            final Reply reply = result.getReply();
+            status = reply.getStatus();
+            bodyStart = System.nanoTime();
+            deadline = System.currentTimeMillis() + bodyTimeoutMs;
+            if (result.hasFileBody()) { // header, then sendfile
+                out = reply.headerBuffer();
+                file = result.getFileChannel();
+                fileLength = result.getFileLength();
+            } else if (result.hasBufferBody()) { // header and body go out in one gathering write
+                out = reply.headerBuffer();
+                buffered = result.getBufferBody();
+            } else { // streamed body: the header shares the buffer with the first chunk
+                out = ByteBuffer.allocate(Math.max(BUFFER_SIZE, reply.headerLength() * 2));
+                out.position(reply.copyHeaderTo(out.array(), 0));
+                body = result.getBody();
+                if (body != null) {
+                    try {
+                        readBody();
+                    } catch (IOException e) {
+                        closeBody();
+                    }
+                }
+                out.flip();
+            }
+            loop.execute(this::startWriting);
+        }
+
+        // any thread: send a bodyless reply and close
+        private void respond(Reply reply) {
+            busy = true;
+            status = reply.getStatus();
+            bodyStart = System.nanoTime();
+            deadline = System.currentTimeMillis() + bodyTimeoutMs;
+            out = reply.headerBuffer();
+            body = null;
+            loop.execute(this::startWriting);
+        }
+
+        // loop thread
+        private void startWriting() {
+            busy = false;
+            lastActivity = System.currentTimeMillis();
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        // loop thread: drain the buffer, then ask a worker for more body bytes
+        void onWritable() throws IOException {
+            if (buffered != null) {
+                sent += channel.write(new ByteBuffer[] { out, buffered });
+                lastActivity = System.currentTimeMillis(); // progress, so the idle sweep leaves long bodies alone
+                if (!out.hasRemaining() && !buffered.hasRemaining()) {
+                    close();
+                }
+                return;
+            }
+            sent += channel.write(out);
+            lastActivity = System.currentTimeMillis();
+            if (out.hasRemaining()) {
+                return; // socket buffer is full, wait for the next OP_WRITE
+            }
+            if (file != null) {
+                if (transferFile()) {
+                    close();
+                }
+                return;
+            }
+            if (body == null) {
+                close();
+                return;
+            }
+            key.interestOps(0);
+            busy = true;
+            workers.execute(this::refill);
+        }
+
+        /**
+         * loop thread: push as much of the file as the socket takes (sendfile, no copy through the heap)
+         * @return true once the whole file is sent
+         */
+        private boolean transferFile() throws IOException {
+            while (filePosition < fileLength) {
+                long sent = file.transferTo(filePosition, fileLength - filePosition, channel);
+                if (sent <= 0) {
+                    return filePosition >= file.size(); // file shrank -> done, otherwise the socket is full
+                }
+                filePosition += sent;
+                this.sent += sent;
+            }
+            return true;
+        }
+
+        // worker thread: reading the body may block (file or upstream socket), so it never happens on the loop
+        private void refill() {
+            out.clear();
+            try {
+                readBody();
+            } catch (IOException e) {
+                closeBody();
+                loop.execute(this::close);
+                return;
+            }
+            out.flip();
+            if (!out.hasRemaining() && body == null) {
+                loop.execute(this::close);
+            } else {
+                loop.execute(this::startWriting);
+            }
+        }
+
+        // reads one chunk of the body into out, drops the body at EOF
+        private void readBody() throws IOException {
+            int n = body.read(out.array(), out.position(), out.remaining());
+            if (n == -1) {
+                closeBody();
+            } else {
+                out.position(out.position() + n);
+            }
+        }
+
+        private void closeBody() {
+            if (body != null) {
+                try { body.close(); } catch (IOException ignore) { }
+                body = null;
+            }
+        }
+
+        void close() {
+            if (!closed) { // may be called again (e.g. by the shutdown sweep), count it once
+                closed = true;
+                final long now = System.nanoTime();
+                metrics.connectionFinished();
+                if (status != 0) {
+                    metrics.reply(status);
+                    metrics.bytesSent(sent);
+                    metrics.record(ServerMetrics.Phase.BODY, now - bodyStart);
+                }
+                metrics.record(ServerMetrics.Phase.TOTAL, now - acceptedAt);
+                if (accessLog != null && status != 0) {
+                    accessLog.log(channel.socket().getRemoteSocketAddress(), request, status, sent, now - acceptedAt);
+                }
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try { channel.close(); } catch (IOException ignore) { }
+            closeBody();
+            if (file != null) {
+                try { file.close(); } catch (IOException ignore) { }
+                file = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package gemini_lite.engine;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import gemini_lite.protocol.Reply;
+
+/**
+ * What ClientEngine.fetch completes with: the parsed reply header plus the body as it streams in.
+ * Closing the response (or its body) closes the connection.
+ */
+public final class Response implements AutoCloseable {
+    private final Reply reply;
+    private final InputStream body;
+
+    Response(Reply reply, InputStream body) {
+        this.reply = reply;
+        this.body = body;
+    }
+
+    public Reply getReply() {
+        return reply;
+    }
+
+    /**
+     * @return the body bytes following the reply header; reads block until data arrives, -1 at the end
+     */
+    public InputStream getBody() {
+        return body;
+    }
+
+    @Override
+    public void close() {
+        try {
+            body.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package gemini_lite.load;
+
+/**
+ * Log-linear histogram of latencies in microseconds, with about 1.5% precision from 1µs up to days.
+ * Values below 128 get their own bucket; above that every power of two is split into 64 buckets.
+ * Not thread-safe: each load worker records into its own and they are merged at the end.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 128;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int MAX_SHIFT = 40;
+
+    private final long[] counts = new long[SUB_BUCKETS + MAX_SHIFT * HALF];
+    private long total = 0;
+    private long max = 0;
+    private double sum = 0;
+
+    void record(long micros) {
+        long v = Math.max(0, micros);
+        counts[index(v)]++;
+        total++;
+        sum += v;
+        max = Math.max(max, v);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return total;
+    }
+
+    long max() {
+        return max;
+    }
+
+    double mean() {
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * @param p between 0 and 1, e.g. 0.999
+     * @return the smallest recorded-bucket value that at least p of all samples are at or below
+     */
+    long percentile(double p) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int index(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int shift = Math.min((63 - Long.numberOfLeadingZeros(v)) - 6, MAX_SHIFT); // keep the top 7 bits
+        long top = Math.min(v >> shift, SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (top - HALF);
+    }
+
+    private static long highestValue(int index) { // largest value that lands in this bucket
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long top = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+}
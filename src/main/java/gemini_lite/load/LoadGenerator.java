@@ -0,0 +1,304 @@
+package gemini_lite.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import gemini_lite.protocol.Wire;
+import gemini_lite.protocol.WireInputStream;
+
+/**
+ * Load generator: replays the scenarios from test-cases.json (and any other scenario/JSON-lines files)
+ * against a running Server or Proxy and reports throughput and latency percentiles.
+ *
+ * With a target rate the schedule is fixed up front (request i is due at start + i/rate) and latency is measured
+ * from when a request was due, not from when a connection got around to sending it. So a stall shows up in every
+ * request it delayed (coordinated-omission correction); the plain service time is reported next to it.
+ * Without a rate every connection sends as fast as it can (closed loop) and the two are the same.
+ */
+public class LoadGenerator {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 10000;
+
+    private final String host;
+    private final int port;
+    private final List<Scenario> scenarios;
+    private final int connections;
+    private final double rate; // requests per second, 0 -> as fast as possible
+    private final long warmupNanos;
+    private final long durationNanos;
+
+    /**
+     * @param host target host
+     * @param port target port
+     * @param scenarios what to send, round robin
+     * @param connections requests in flight at once (one connection each, that's how Gemini works)
+     * @param rate target requests per second over all connections, 0 for closed loop
+     * @param warmupSeconds time run but not measured
+     * @param durationSeconds time measured
+     */
+    LoadGenerator(String host, int port, List<Scenario> scenarios, int connections, double rate, int warmupSeconds, int durationSeconds) {
+        if (scenarios.isEmpty()) throw new IllegalArgumentException("No scenarios to replay");
+        if (connections < 1) throw new IllegalArgumentException("connections must be at least 1");
+        this.host = host;
+        this.port = port;
+        this.scenarios = scenarios;
+        this.connections = connections;
+        this.rate = rate;
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+    }
+
+    /**
+     * Arguments: [files...] plus options
+     *   --target HOST:PORT    server or proxy to load (default localhost:1958)
+     *   --mode server|proxy   which scenarios to replay (default server); proxy starts the stub upstream
+     *   --connections N       concurrent connections (default 32)
+     *   --rate N              target requests/second (default: as fast as possible)
+     *   --duration S          measured seconds (default 30)
+     *   --warmup S            unmeasured seconds first (default 5)
+     *   --docroot DIR         write the server scenarios' documents into the target's document root first
+     *   --stub-port N         port of the stub upstream in proxy mode (default 1958)
+     *   --max-p99 MS          exit with 2 if the corrected p99 is above this
+     * Files default to test-cases.json and requests.jsonl in the current directory.
+     */
+    public static void main(String[] args) throws Exception {
+        String target = "localhost:1958";
+        String mode = "server";
+        int connections = 32;
+        double rate = 0;
+        int duration = 30;
+        int warmup = 5;
+        String docroot = null;
+        int stubPort = 1958;
+        double maxP99 = -1;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--target": target = value(args, ++i); break;
+                case "--mode": mode = value(args, ++i); break;
+                case "--connections": connections = Integer.parseInt(value(args, ++i)); break;
+                case "--rate": rate = Double.parseDouble(value(args, ++i)); break;
+                case "--duration": duration = Integer.parseInt(value(args, ++i)); break;
+                case "--warmup": warmup = Integer.parseInt(value(args, ++i)); break;
+                case "--docroot": docroot = value(args, ++i); break;
+                case "--stub-port": stubPort = Integer.parseInt(value(args, ++i)); break;
+                case "--max-p99": maxP99 = Double.parseDouble(value(args, ++i)); break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        System.err.println("Unknown option: " + args[i]);
+                        System.exit(1);
+                    }
+                    files.add(args[i]);
+            }
+        }
+        if (files.isEmpty()) {
+            files.add("test-cases.json");
+            files.add("requests.jsonl");
+        }
+        final Scenario.Target wanted = mode.equals("proxy") ? Scenario.Target.PROXY : Scenario.Target.SERVER;
+
+        final List<Scenario> scenarios = new ArrayList<>();
+        for (String file : files) {
+            final Path path = Paths.get(file);
+            if (!Files.exists(path)) {
+                System.err.println(file + ": not found, skipped");
+                continue;
+            }
+            int found = 0;
+            for (Scenario s : Scenario.load(path, stubPort)) {
+                if (s.target == wanted) {
+                    scenarios.add(s);
+                    found++;
+                }
+            }
+            System.err.println(file + ": " + found + " " + mode + " scenarios");
+        }
+        if (scenarios.isEmpty()) {
+            System.err.println("Nothing to replay in " + mode + " mode");
+            System.exit(1);
+        }
+
+        if (docroot != null) {
+            writeDocuments(scenarios, Paths.get(docroot));
+        }
+        StubUpstream stub = null;
+        if (wanted == Scenario.Target.PROXY) {
+            stub = new StubUpstream(stubPort);
+            for (Scenario s : scenarios) {
+                s.upstream.forEach(stub::put);
+            }
+            System.err.println("Stub upstream listening on " + stubPort);
+        }
+
+        final String[] hostPort = target.split(":", 2);
+        final LoadGenerator load = new LoadGenerator(hostPort[0], (hostPort.length > 1) ? Integer.parseInt(hostPort[1]) : 1958,
+                scenarios, connections, rate, warmup, duration);
+        System.err.println("Loading " + target + " with " + connections + " connections, "
+                + (rate > 0 ? rate + " req/s" : "closed loop") + ", " + warmup + "s warmup + " + duration + "s");
+        final Result result = load.run();
+        if (stub != null) {
+            stub.close();
+        }
+        result.print(load.durationNanos, rate > 0);
+
+        if (maxP99 >= 0 && result.responseTime.percentile(0.99) / 1000.0 > maxP99) {
+            System.err.println("p99 above " + maxP99 + " ms");
+            System.exit(2);
+        }
+        System.exit(result.errors + result.unexpected == 0 ? 0 : 1);
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    private static void writeDocuments(List<Scenario> scenarios, Path root) throws IOException {
+        final Path base = root.toAbsolutePath().normalize();
+        for (Scenario s : scenarios) {
+            for (var doc : s.documents.entrySet()) {
+                Path file = base.resolve(doc.getKey()).normalize();
+                if (!file.startsWith(base)) {
+                    continue; // never write outside the document root
+                }
+                Files.createDirectories(file.getParent());
+                Files.writeString(file, doc.getValue(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    /**
+     * runs warmup + measurement on all connections and waits for them
+     * @return merged counts and histograms
+     */
+    Result run() throws InterruptedException {
+        final AtomicLong sequence = new AtomicLong();
+        final long start = System.nanoTime();
+        final long measureFrom = start + warmupNanos;
+        final long end = measureFrom + durationNanos;
+        final List<Result> perConnection = new ArrayList<>();
+        final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+        for (int c = 0; c < connections; c++) {
+            final Result mine = new Result();
+            perConnection.add(mine);
+            workers.execute(() -> work(sequence, start, measureFrom, end, mine));
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        Result total = new Result();
+        perConnection.forEach(total::add);
+        return total;
+    }
+
+    private void work(AtomicLong sequence, long start, long measureFrom, long end, Result result) {
+        final byte[] scratch = new byte[16 * 1024];
+        while (true) {
+            final long n = sequence.getAndIncrement();
+            long due = (rate > 0) ? start + (long) (n * 1e9 / rate) : System.nanoTime();
+            if (due >= end) {
+                return;
+            }
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            final Scenario scenario = scenarios.get((int) (n % scenarios.size()));
+            final long sent = System.nanoTime();
+            if (rate <= 0) {
+                due = sent;
+            }
+            Outcome outcome = exchange(scenario, scratch);
+            final long done = System.nanoTime();
+            if (due >= measureFrom) {
+                result.record(outcome, (done - due) / 1000, (done - sent) / 1000);
+            }
+        }
+    }
+
+    private enum Outcome { OK, UNEXPECTED, ERROR }
+
+    private Outcome exchange(Scenario scenario, byte[] scratch) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            out.write(scenario.request);
+            out.flush();
+            InputStream in = new WireInputStream(socket.getInputStream());
+            String header = Wire.readHeaderLine(in);
+            while (in.read(scratch) != -1) {
+                // drain the body
+            }
+            if (scenario.expectedReply != null && !scenario.expectedReply.matcher(header).matches()) {
+                return Outcome.UNEXPECTED;
+            }
+            return Outcome.OK;
+        } catch (IOException e) {
+            return Outcome.ERROR;
+        }
+    }
+
+    /**
+     * Counts and latencies, per connection while running and merged at the end.
+     */
+    static final class Result {
+        private final LatencyHistogram responseTime = new LatencyHistogram(); // from when the request was due
+        private final LatencyHistogram serviceTime = new LatencyHistogram();  // from when it was actually sent
+        private long ok;
+        private long unexpected;
+        private long errors;
+
+        private void record(Outcome outcome, long responseMicros, long serviceMicros) {
+            responseTime.record(responseMicros);
+            serviceTime.record(serviceMicros);
+            switch (outcome) {
+                case OK: ok++; break;
+                case UNEXPECTED: unexpected++; break;
+                default: errors++;
+            }
+        }
+
+        private void add(Result other) {
+            responseTime.add(other.responseTime);
+            serviceTime.add(other.serviceTime);
+            ok += other.ok;
+            unexpected += other.unexpected;
+            errors += other.errors;
+        }
+
+        private void print(long measuredNanos, boolean corrected) {
+            long total = ok + unexpected + errors;
+            System.out.printf("requests    %d (%d ok, %d unexpected reply, %d errors)%n", total, ok, unexpected, errors);
+            System.out.printf("throughput  %.1f req/s%n", total / (measuredNanos / 1e9));
+            System.out.printf("%-12s %9s %9s %9s %9s %9s %9s%n", "latency ms", "p50", "p90", "p99", "p99.9", "max", "mean");
+            if (corrected) {
+                row("response", responseTime);
+            }
+            row("service", serviceTime);
+        }
+
+        private static void row(String name, LatencyHistogram h) {
+            System.out.printf("%-12s %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n", name,
+                    h.percentile(0.50) / 1000.0, h.percentile(0.90) / 1000.0, h.percentile(0.99) / 1000.0,
+                    h.percentile(0.999) / 1000.0, h.max() / 1000.0, h.mean() / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package gemini_lite.load;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import gemini_lite.protocol.Wire;
+
+/**
+ * One replayable transaction: the raw request line to send, the expected reply header (if known),
+ * documents the server needs and the replies a stub upstream should give (proxy scenarios).
+ * Loaded from test-cases.json style arrays or from JSON-lines files.
+ */
+final class Scenario {
+    enum Target { SERVER, PROXY }
+
+    final String name;
+    final Target target;
+    final byte[] request;
+    final Pattern expectedReply; // null -> any well-formed reply counts
+    final Map<String, String> documents = new LinkedHashMap<>(); // path under the docroot -> content
+    final Map<String, String> upstream = new LinkedHashMap<>();  // URL -> raw reply for the stub
+
+    private Scenario(String name, Target target, String requestLine, String replyRegex) {
+        this.name = name;
+        this.target = target;
+        this.request = requestLine.getBytes(StandardCharsets.UTF_8);
+        this.expectedReply = (replyRegex == null) ? null : Pattern.compile(replyRegex);
+    }
+
+    /**
+     * reads every scenario in file, which is either one JSON array or one JSON object per line
+     * @param file test-cases.json, a .jsonl file, ...
+     * @param stubPort port the stub upstream listens on; the test cases' localhost:1958 URLs are rewritten to it
+     * @return the scenarios found (objects that describe nothing replayable are skipped)
+     */
+    static List<Scenario> load(Path file, int stubPort) throws IOException {
+        String text = Files.readString(file, StandardCharsets.UTF_8).trim();
+        List<Object> items = new ArrayList<>();
+        if (text.startsWith("[")) {
+            items.addAll((List<?>) Json.parse(text));
+        } else {
+            for (String line : text.split("\n")) {
+                if (!line.isBlank()) {
+                    items.add(Json.parse(line));
+                }
+            }
+        }
+        List<Scenario> scenarios = new ArrayList<>();
+        for (Object item : items) {
+            if (item instanceof Map<?, ?> map) {
+                Scenario scenario = fromObject(map, stubPort);
+                if (scenario != null) {
+                    scenarios.add(scenario);
+                }
+            }
+        }
+        return scenarios;
+    }
+
+    private static Scenario fromObject(Map<?, ?> map, int stubPort) {
+        String type = string(map, "type");
+        String name = string(map, "name");
+        if (name == null) {
+            name = "scenario";
+        }
+        if ("proxy".equals(type)) { // request through the proxy, upstream answers from server_transactions
+            String request = string(map, "request");
+            if (request == null) {
+                return null;
+            }
+            Scenario s = new Scenario(name, Target.PROXY, rewrite(request, stubPort), string(map, "reply_regex"));
+            addTransactions(s, map.get("server_transactions"), stubPort);
+            return s;
+        }
+        if ("client".equals(type)) { // the transactions are what a server replies to a client: replay them through the proxy
+            Object transactions = map.get("transactions");
+            if (!(transactions instanceof List<?> list) || list.isEmpty() || !(list.get(0) instanceof Map<?, ?> first)) {
+                return null;
+            }
+            String url = string(first, "url");
+            if (url == null) {
+                return null;
+            }
+            Scenario s = new Scenario(name, Target.PROXY, rewrite(url, stubPort) + Wire.CRLF, null);
+            addTransactions(s, transactions, stubPort);
+            return s;
+        }
+        // "server" test cases, or anything else that has a request line or URL
+        String request = string(map, "request");
+        if (request == null && string(map, "url") != null) {
+            request = string(map, "url") + Wire.CRLF;
+        }
+        if (request == null) {
+            return null;
+        }
+        Scenario s = new Scenario(name, Target.SERVER, request, string(map, "reply_regex"));
+        if (map.get("documents") instanceof Map<?, ?> docs) {
+            docs.forEach((path, content) -> s.documents.put(String.valueOf(path), String.valueOf(content)));
+        }
+        return s;
+    }
+
+    private static void addTransactions(Scenario s, Object transactions, int stubPort) {
+        if (transactions instanceof List<?> list) {
+            for (Object t : list) {
+                if (t instanceof Map<?, ?> tx && string(tx, "url") != null && string(tx, "reply") != null) {
+                    s.upstream.put(rewrite(string(tx, "url"), stubPort), string(tx, "reply"));
+                }
+            }
+        }
+    }
+
+    private static String rewrite(String text, int stubPort) {
+        return text.replace("localhost:1958", "localhost:" + stubPort);
+    }
+
+    private static String string(Map<?, ?> map, String key) {
+        Object value = map.get(key);
+        return (value instanceof String s) ? s : null;
+    }
+}
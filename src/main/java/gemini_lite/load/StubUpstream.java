@@ -0,0 +1,95 @@
+package gemini_lite.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import gemini_lite.protocol.Wire;
+import gemini_lite.protocol.WireInputStream;
+
+/**
+ * Local upstream for proxy scenarios: answers each request line with a canned raw reply,
+ * byte for byte, so malformed replies from the test cases reach the proxy unchanged.
+ * Unknown URLs get "51 Not found".
+ */
+final class StubUpstream implements AutoCloseable {
+    private static final byte[] NOT_FOUND = ("51 Not found" + Wire.CRLF).getBytes(StandardCharsets.UTF_8);
+
+    private final ServerSocket listener;
+    private final Map<String, byte[]> replies = new ConcurrentHashMap<>(); // full URL and path+query -> reply bytes
+    private final ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+
+    StubUpstream(int port) throws IOException {
+        this.listener = new ServerSocket(port, 1024);
+        Thread t = new Thread(this::acceptLoop, "stub-upstream");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @param url request URL as the proxy will send it
+     * @param reply raw reply: header line with CRLF, then the body
+     */
+    void put(String url, String reply) {
+        byte[] bytes = reply.getBytes(StandardCharsets.UTF_8);
+        replies.put(url, bytes);
+        String local = pathAndQuery(url);
+        if (local != null) {
+            replies.putIfAbsent(local, bytes); // the proxy may leave out a default port
+        }
+    }
+
+    private void acceptLoop() {
+        while (!listener.isClosed()) {
+            try {
+                Socket socket = listener.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!listener.isClosed()) {
+                    System.err.println("Stub upstream accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            InputStream in = new WireInputStream(socket.getInputStream());
+            String line = Wire.readHeaderLine(in);
+            byte[] reply = replies.get(line);
+            if (reply == null) {
+                String local = pathAndQuery(line);
+                reply = (local == null) ? null : replies.get(local);
+            }
+            OutputStream out = socket.getOutputStream();
+            out.write(reply == null ? NOT_FOUND : reply);
+            out.flush();
+        } catch (IOException e) {
+            // the proxy hung up, nothing to do
+        }
+    }
+
+    private static String pathAndQuery(String url) {
+        try {
+            URI uri = new URI(url);
+            String path = (uri.getRawPath() == null || uri.getRawPath().isEmpty()) ? "/" : uri.getRawPath();
+            return path + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        listener.close();
+        connections.shutdownNow();
+    }
+}
@@ -0,0 +1,282 @@
+package gemini_lite.protocol;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous access log: one JSON line per request, written by a background thread.
+ * Request threads only claim a slot in a fixed ring of preallocated entries (a CAS, no lock, no allocation)
+ * and fill it in; the writer formats whole batches and hands them to the file in large writes.
+ * When the ring is full, entries are either dropped (and counted) or the request thread waits, see Policy.
+ */
+public class AccessLog implements AutoCloseable {
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = 100_000_000L; // writer checks back at least every 100ms
+    private static final long FULL_PARK_NANOS = 50_000L;       // producers wait this long between tries with BLOCK
+
+    /**
+     * What a request thread does when the ring is full.
+     * DROP: skip the entry (counted, and noted in the log), so logging never slows requests down
+     * BLOCK: wait for the writer to make room, so nothing is lost
+     */
+    public enum Policy { DROP, BLOCK }
+
+    /**
+     * One preallocated slot, written by one producer, then read by the writer.
+     */
+    private static final class Entry {
+        long time;
+        Object remote;
+        Object request;
+        int status;
+        long bytes;
+        long nanos;
+    }
+
+    private final OutputStream out;
+    private final boolean closeOut;
+    private final Policy policy;
+    private final int mask;
+    private final Entry[] entries;
+    private final AtomicLongArray sequences; // per slot: == position when free for that position, position + 1 when filled
+    private final AtomicLong tail = new AtomicLong(); // next position producers claim
+    private long head = 0; // next position the writer reads, writer thread only
+    private final LongAdder dropped = new LongAdder();
+    private Thread writer; // set by start() before the log is handed out
+    private volatile boolean writerParked = false;
+    private volatile boolean closed = false;
+
+    private AccessLog(OutputStream out, boolean closeOut, Policy policy, int capacity) {
+        if (out == null) throw new NullPointerException("out");
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1");
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.out = out;
+        this.closeOut = closeOut;
+        this.policy = policy;
+        this.mask = size - 1;
+        this.entries = new Entry[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * makes an access log and starts its writer thread (not in the constructor, so the thread never sees a
+     * half-built log)
+     * @param out where the lines go (a file, or stderr)
+     * @param closeOut whether close() closes out
+     * @param policy what to do when the ring is full
+     * @param capacity ring size, rounded up to a power of two
+     */
+    public static AccessLog start(OutputStream out, boolean closeOut, Policy policy, int capacity) {
+        final AccessLog log = new AccessLog(out, closeOut, policy, capacity);
+        log.writer = new Thread(log::writeLoop, "access-log-writer");
+        log.writer.setDaemon(true);
+        log.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(log::close)); // don't lose the last lines on exit
+        return log;
+    }
+
+    /**
+     * opens an access log from a setting like GEMINI_LITE_ACCESS_LOG
+     * @param target "-" for stderr, otherwise a file to append to
+     * @param policy what to do when the ring is full
+     * @param capacity ring size
+     */
+    public static AccessLog open(String target, Policy policy, int capacity) throws IOException {
+        if (target.equals("-")) {
+            return start(new FileOutputStream(FileDescriptor.err), false, policy, capacity);
+        }
+        return start(new FileOutputStream(target, true), true, policy, capacity);
+    }
+
+    /**
+     * records one finished request; cheap enough for the request path (formatting happens on the writer)
+     * @param remote client address (its toString is used)
+     * @param request request URI or line, null if none could be read
+     * @param status reply status sent
+     * @param bytes bytes sent, header included
+     * @param nanos time from accept to the last byte
+     */
+    public void log(Object remote, Object request, int status, long bytes, long nanos) {
+        if (closed) {
+            return;
+        }
+        long pos = tail.get();
+        int index;
+        while (true) {
+            index = (int) (pos & mask);
+            long diff = sequences.getAcquire(index) - pos;
+            if (diff == 0) { // slot is free for this position, try to claim it
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) { // ring is full
+                if (policy == Policy.DROP) {
+                    dropped.increment();
+                    return;
+                }
+                wakeWriter();
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+                pos = tail.get();
+            } else { // another producer got there first
+                pos = tail.get();
+            }
+        }
+        Entry e = entries[index];
+        e.time = System.currentTimeMillis();
+        e.remote = remote;
+        e.request = request;
+        e.status = status;
+        e.bytes = bytes;
+        e.nanos = nanos;
+        sequences.setRelease(index, pos + 1); // publish
+        if (writerParked) {
+            wakeWriter();
+        }
+    }
+
+    /**
+     * @return entries dropped so far because the ring was full (DROP policy)
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void wakeWriter() {
+        LockSupport.unpark(writer);
+    }
+
+    private void writeLoop() {
+        final StringBuilder line = new StringBuilder(256);
+        final byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+        int used = 0;
+        long reportedDrops = 0;
+        while (true) {
+            int index = (int) (head & mask);
+            if (sequences.getAcquire(index) == head + 1) { // filled
+                Entry e = entries[index];
+                format(e, line);
+                e.remote = null; // don't keep the objects alive
+                e.request = null;
+                sequences.setRelease(index, head + mask + 1); // free for the position one lap later
+                head++;
+                used = append(line, buffer, used);
+                continue;
+            }
+            // ring is empty: note drops, write out what we have, then sleep until a producer wakes us
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                line.setLength(0);
+                line.append("{\"time\":\"").append(Instant.ofEpochMilli(System.currentTimeMillis())).append("\",\"dropped\":").append(drops - reportedDrops).append("}\n");
+                reportedDrops = drops;
+                used = append(line, buffer, used);
+            }
+            used = flush(buffer, used);
+            if (closed) {
+                return;
+            }
+            writerParked = true;
+            if (sequences.getAcquire((int) (head & mask)) != head + 1) { // check again so a publish can't be missed
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            writerParked = false;
+        }
+    }
+
+    private int append(StringBuilder line, byte[] buffer, int used) {
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        if (used + bytes.length > buffer.length) {
+            used = flush(buffer, used);
+        }
+        if (bytes.length > buffer.length) { // a giant line, write it by itself
+            write(bytes, bytes.length);
+            return used;
+        }
+        System.arraycopy(bytes, 0, buffer, used, bytes.length);
+        return used + bytes.length;
+    }
+
+    private int flush(byte[] buffer, int used) {
+        if (used > 0) {
+            write(buffer, used);
+        }
+        return 0;
+    }
+
+    private void write(byte[] bytes, int length) {
+        try {
+            out.write(bytes, 0, length);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Access log write failed: " + e.getMessage());
+        }
+    }
+
+    private static void format(Entry e, StringBuilder sb) {
+        sb.setLength(0);
+        sb.append("{\"time\":\"").append(Instant.ofEpochMilli(e.time)).append('"');
+        sb.append(",\"remote\":");
+        quote(e.remote, sb);
+        sb.append(",\"status\":").append(e.status);
+        sb.append(",\"bytes\":").append(e.bytes);
+        sb.append(",\"ms\":").append(e.nanos / 1000 / 1000.0);
+        sb.append(",\"request\":");
+        quote(e.request, sb);
+        sb.append("}\n");
+    }
+
+    private static void quote(Object value, StringBuilder sb) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        String s = value.toString();
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * writes out everything logged so far and stops the writer
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        wakeWriter();
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (closeOut) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
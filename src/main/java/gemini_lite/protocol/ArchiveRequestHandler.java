@@ -0,0 +1,131 @@
+package gemini_lite.protocol;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Serves a capsule packed with CapsuleArchive.pack, with the same answers FileSystemRequestHandler gives for the tree
+ * (59 for missing paths, 51 for directories without index.gmi or paths escaping the root).
+ * Each request is one lookup in the mapped index and a slice of the mapping as the body, no filesystem calls.
+ * Deploying new content is replacing the archive file; watch() picks the new one up without a restart.
+ */
+public class ArchiveRequestHandler implements RequestHandler {
+    private volatile CapsuleArchive archive;
+
+    /**
+     * @param archive the archive to serve
+     */
+    public ArchiveRequestHandler(CapsuleArchive archive) {
+        if (archive == null) throw new NullPointerException("archive");
+        this.archive = archive;
+    }
+
+    /**
+     * swaps in another archive; requests already being sent keep their slices of the old one
+     */
+    public void setArchive(CapsuleArchive archive) {
+        if (archive == null) throw new NullPointerException("archive");
+        this.archive = archive;
+    }
+
+    @Override
+    public HandlerResult handle(Request request) {
+        final String path = normalize(request.getURI());
+        if (path == null) { // tried to leave the root
+            return new HandlerResult(Reply.NOT_FOUND_51);
+        }
+        final CapsuleArchive current = archive; // one archive for the whole lookup, even if it is swapped meanwhile
+        final int entry = current.find(path);
+        if (entry < 0) {
+            return new HandlerResult(Reply.NOT_FOUND_59);
+        }
+        final int kind = current.kind(entry);
+        if (kind == CapsuleArchive.NO_INDEX) {
+            return new HandlerResult(Reply.NOT_FOUND_51);
+        }
+        try {
+            return new HandlerResult(Reply.success(CapsuleArchive.mimeType(kind)), current.content(entry));
+        } catch (ProtocolSyntaxException e) { // the archive's MIME types are constants
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * turns the request path into an archive name: no leading or trailing slash, "." and ".." resolved
+     * @return the name, or null if ".." goes above the root
+     */
+    static String normalize(URI uri) {
+        final String path = uri.getPath();
+        if (path == null || path.isEmpty() || path.equals("/")) {
+            return "";
+        }
+        if (path.indexOf("/.") < 0 && !path.startsWith(".") && path.indexOf("//") < 0) { // nothing to resolve, the common case
+            final int start = path.startsWith("/") ? 1 : 0;
+            final int end = path.endsWith("/") ? path.length() - 1 : path.length();
+            return path.substring(start, Math.max(start, end));
+        }
+        final StringBuilder sb = new StringBuilder(path.length());
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                final int cut = sb.lastIndexOf("/");
+                if (sb.length() == 0) {
+                    return null;
+                }
+                sb.setLength(Math.max(cut, 0));
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(segment);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * reloads the archive whenever the file is replaced or rewritten (e.g. by pack, which moves the new one into place)
+     * runs on a daemon thread until the JVM exits
+     * @param file the archive file this handler serves
+     * @throws IOException if the directory can't be watched
+     */
+    public void watch(Path file) throws IOException {
+        final Path absolute = file.toAbsolutePath();
+        final WatchService watcher = absolute.getFileSystem().newWatchService();
+        absolute.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        final Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    final WatchKey key = watcher.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (absolute.getFileName().equals(event.context())) {
+                            changed = true;
+                        }
+                    }
+                    key.reset();
+                    if (changed) {
+                        try {
+                            setArchive(CapsuleArchive.open(absolute));
+                            System.err.println("Reloaded " + absolute + " (" + archive.size() + " paths)");
+                        } catch (IOException e) { // e.g. copied in place and not complete yet, the next event retries
+                            System.err.println("Could not reload " + absolute + ": " + e.getMessage());
+                        }
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // shutting down
+            }
+        }, "archive-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -0,0 +1,279 @@
+package gemini_lite.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A whole read-only capsule packed into one file, served straight from a memory mapping.
+ *
+ * Layout (big-endian):
+ *   header    magic "GLCA", version, entry count, hash table size (ints)
+ *   table     hash table size ints: entry number + 1, 0 = empty slot (open addressing, linear probing)
+ *   entries   per entry: path hash, name offset, name length, kind (ints), content offset, content length (longs)
+ *   names     the paths in UTF-8, relative to the root without leading or trailing slash ("" is the root)
+ *   contents  the file contents, one after another
+ * A directory is an entry too, sharing the content of its index.gmi, or of kind NO_INDEX if it has none.
+ *
+ * Looking a path up is a hash, usually one probe and one name comparison, all inside the mapping;
+ * the body is a slice of the mapping, so a request never touches the filesystem.
+ * The mapping is limited to 2 GB, which pack checks.
+ */
+public final class CapsuleArchive {
+    public static final int MAGIC = 0x474C4341; // "GLCA"
+    public static final int VERSION = 1;
+
+    // entry kinds, the first three index MIME_TYPES
+    static final int GEMTEXT = 0;
+    static final int PLAIN = 1;
+    static final int OCTET = 2;
+    static final int NO_INDEX = 3;
+    private static final String[] MIME_TYPES = { "text/gemini", "text/plain", "application/octet-stream" };
+
+    private static final int HEADER_BYTES = 16;
+    private static final int ENTRY_BYTES = 32;
+
+    private final ByteBuffer map; // never read through its position, only absolute gets
+    private final int entryCount;
+    private final int tableMask;
+    private final int entriesAt;
+
+    private CapsuleArchive(ByteBuffer map) throws IOException {
+        this.map = map;
+        if (map.capacity() < HEADER_BYTES || map.getInt(0) != MAGIC) {
+            throw new IOException("Not a capsule archive");
+        }
+        if (map.getInt(4) != VERSION) {
+            throw new IOException("Unsupported capsule archive version " + map.getInt(4));
+        }
+        this.entryCount = map.getInt(8);
+        final int tableSize = map.getInt(12);
+        if (Integer.bitCount(tableSize) != 1 || entryCount < 0 || entryCount >= tableSize
+                || HEADER_BYTES + (long) tableSize * 4 + (long) entryCount * ENTRY_BYTES > map.capacity()) {
+            throw new IOException("Corrupt capsule archive header");
+        }
+        this.tableMask = tableSize - 1;
+        this.entriesAt = HEADER_BYTES + tableSize * 4;
+        for (int i = 0; i < entryCount; i++) { // check once here so lookups can trust every offset
+            final int at = entriesAt + i * ENTRY_BYTES;
+            final long nameEnd = (long) map.getInt(at + 4) + map.getInt(at + 8);
+            final long contentEnd = map.getLong(at + 16) + map.getLong(at + 24);
+            if (map.getInt(at + 4) < 0 || map.getInt(at + 8) < 0 || nameEnd > map.capacity()
+                    || map.getLong(at + 16) < 0 || map.getLong(at + 24) < 0 || contentEnd > map.capacity()
+                    || map.getInt(at + 12) < 0 || map.getInt(at + 12) > NO_INDEX) {
+                throw new IOException("Corrupt capsule archive entry " + i);
+            }
+        }
+    }
+
+    /**
+     * maps an archive read-only
+     * @param file an archive written by pack
+     * @throws IOException if it can't be read or isn't a valid archive
+     */
+    public static CapsuleArchive open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) { // the mapping outlives the channel
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Capsule archive larger than 2 GB: " + file);
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CapsuleArchive(map);
+        }
+    }
+
+    /**
+     * @return number of paths (files and directories) in the archive
+     */
+    public int size() {
+        return entryCount;
+    }
+
+    /**
+     * @param path path relative to the root, without leading or trailing slash, already normalized
+     * @return entry number, or -1 if the archive doesn't have the path
+     */
+    int find(String path) {
+        final byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        final int hash = hash(name);
+        for (int slot = hash & tableMask; ; slot = (slot + 1) & tableMask) {
+            final int entry = map.getInt(HEADER_BYTES + slot * 4) - 1;
+            if (entry < 0 || entry >= entryCount) { // empty slot ends the probe
+                return -1;
+            }
+            final int at = entriesAt + entry * ENTRY_BYTES;
+            if (map.getInt(at) == hash && nameEquals(map.getInt(at + 4), map.getInt(at + 8), name)) {
+                return entry;
+            }
+        }
+    }
+
+    int kind(int entry) {
+        return map.getInt(entriesAt + entry * ENTRY_BYTES + 12);
+    }
+
+    static String mimeType(int kind) {
+        return MIME_TYPES[kind];
+    }
+
+    /**
+     * @return the entry's content as a slice of the mapping, positioned at 0 (a new buffer per call, so each reply can consume its own)
+     */
+    ByteBuffer content(int entry) {
+        final int at = entriesAt + entry * ENTRY_BYTES;
+        return map.slice((int) map.getLong(at + 16), (int) map.getLong(at + 24));
+    }
+
+    private boolean nameEquals(int offset, int length, byte[] name) {
+        if (length != name.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (map.get(offset + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] name) { // FNV-1a
+        int h = 0x811C9DC5;
+        for (byte b : name) {
+            h ^= b & 0xff;
+            h *= 0x01000193;
+        }
+        return h;
+    }
+
+    // ---- packing ----
+
+    private record Packed(String name, byte[] nameBytes, int kind, Path file, long length) { }
+
+    /**
+     * packs every readable file and directory under root into one archive
+     * the archive is written next to its destination and moved into place at the end,
+     * so a server watching the destination never sees half a file
+     * @param root document root to pack
+     * @param archive file to write
+     * @return number of entries written
+     * @throws IOException if the tree can't be read, changes while packing, or doesn't fit in 2 GB
+     */
+    public static int pack(Path root, Path archive) throws IOException {
+        root = root.toAbsolutePath().normalize();
+        if (!Files.isDirectory(root)) {
+            throw new IOException("Not a directory: " + root);
+        }
+        final List<Packed> entries = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) paths.sorted()::iterator) {
+                final String name = root.relativize(p).toString().replace(p.getFileSystem().getSeparator(), "/");
+                if (Files.isDirectory(p)) {
+                    final Path index = p.resolve("index.gmi");
+                    if (Files.isRegularFile(index) && Files.isReadable(index)) {
+                        entries.add(new Packed(name, name.getBytes(StandardCharsets.UTF_8), GEMTEXT, index, Files.size(index)));
+                    } else {
+                        entries.add(new Packed(name, name.getBytes(StandardCharsets.UTF_8), NO_INDEX, null, 0));
+                    }
+                } else if (Files.isRegularFile(p) && Files.isReadable(p)) {
+                    final int kind = switch (FileSystemRequestHandler.getMimeType(p.getFileName().toString())) {
+                        case "text/gemini" -> GEMTEXT;
+                        case "text/plain" -> PLAIN;
+                        default -> OCTET;
+                    };
+                    entries.add(new Packed(name, name.getBytes(StandardCharsets.UTF_8), kind, p, Files.size(p)));
+                }
+            }
+        }
+
+        final int tableSize = Integer.highestOneBit(Math.max(2, entries.size() * 2 - 1)) << 1; // at most half full
+        final long namesAt = HEADER_BYTES + (long) tableSize * 4 + (long) entries.size() * ENTRY_BYTES;
+        long contentsAt = namesAt;
+        for (Packed e : entries) {
+            contentsAt += e.nameBytes().length;
+        }
+
+        // index: a directory shares the content of its index.gmi, which sorts right after it and is written once
+        final int[] table = new int[tableSize];
+        final ByteBuffer index = ByteBuffer.allocate((int) (contentsAt - HEADER_BYTES - (long) tableSize * 4));
+        final ByteBuffer names = index.slice(entries.size() * ENTRY_BYTES, (int) (contentsAt - namesAt));
+        final List<Packed> contents = new ArrayList<>();
+        long nameOffset = namesAt;
+        long contentOffset = contentsAt;
+        final Map<Path, Long> written = new HashMap<>(); // file -> content offset
+        for (int i = 0; i < entries.size(); i++) {
+            final Packed e = entries.get(i);
+            final int hash = hash(e.nameBytes());
+            int slot = hash & (tableSize - 1);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            table[slot] = i + 1;
+            long offset = 0;
+            if (e.file() != null) {
+                Long existing = written.get(e.file());
+                if (existing == null) {
+                    existing = contentOffset;
+                    written.put(e.file(), existing);
+                    contents.add(e);
+                    contentOffset += e.length();
+                }
+                offset = existing;
+            }
+            index.putInt(hash).putInt((int) nameOffset).putInt(e.nameBytes().length).putInt(e.kind())
+                    .putLong(offset).putLong(e.length());
+            names.put(e.nameBytes());
+            nameOffset += e.nameBytes().length;
+        }
+        if (contentOffset > Integer.MAX_VALUE) {
+            throw new IOException("Capsule archive would be larger than 2 GB");
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + tableSize * 4);
+        header.putInt(MAGIC).putInt(VERSION).putInt(entries.size()).putInt(tableSize);
+        header.asIntBuffer().put(table); // header.position() is 16, so the view starts at the table
+        header.rewind();
+        index.rewind();
+
+        final Path target = archive.toAbsolutePath();
+        final Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try { // temp files are private, the archive is meant to be deployed and read by the server's user
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-r--r--"));
+            } catch (UnsupportedOperationException ignored) {
+            }
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (header.hasRemaining() || index.hasRemaining()) {
+                    out.write(new ByteBuffer[] { header, index });
+                }
+                for (Packed e : contents) {
+                    try (FileChannel in = FileChannel.open(e.file(), StandardOpenOption.READ)) {
+                        if (in.size() != e.length()) {
+                            throw new IOException("Changed while packing: " + e.file());
+                        }
+                        long position = 0;
+                        while (position < e.length()) {
+                            position += in.transferTo(position, e.length() - position, out);
+                        }
+                    }
+                }
+                out.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return entries.size();
+    }
+}
@@ -0,0 +1,112 @@
+package gemini_lite.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces total-time deadlines on blocking connections.
+ * A socket read timeout only bounds each read, so a client sending one byte just before it fires keeps a thread forever,
+ * and writes have no timeout at all. Instead every connection gets a deadline per phase, and one background thread
+ * closes the socket of any connection past its deadline; the blocked read or write on the worker then fails and frees it.
+ */
+public class ConnectionWatchdog {
+    private static final long TICK_MILLIS = 100;
+
+    private final ServerMetrics metrics;
+    private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+
+    /**
+     * starts the watchdog thread (a daemon, it runs as long as the JVM)
+     * @param metrics where connections closed by a deadline are counted
+     */
+    public ConnectionWatchdog(ServerMetrics metrics) {
+        if (metrics == null) throw new NullPointerException("metrics");
+        this.metrics = metrics;
+        Thread t = new Thread(this::run, "connection-watchdog");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * start watching a connection; close the returned Watch when the connection is done
+     * @param connection what to close when a deadline passes (the socket)
+     */
+    public Watch watch(Closeable connection) {
+        Watch watch = new Watch(connection);
+        watches.add(watch);
+        return watch;
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            final long now = System.nanoTime();
+            for (Watch watch : watches) {
+                if (now - watch.deadline > 0) {
+                    watch.expire();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deadline of one connection. Only the connection's own thread moves it on to the next phase.
+     */
+    public final class Watch implements AutoCloseable {
+        private final Closeable connection;
+        private volatile ServerMetrics.Phase phase = ServerMetrics.Phase.HEADER;
+        private volatile long deadline; // System.nanoTime, far away until the first phase starts
+        private volatile boolean expired = false;
+
+        private Watch(Closeable connection) {
+            this.connection = connection;
+            pause();
+        }
+
+        /**
+         * the connection enters a phase that may take at most timeoutMs from now
+         */
+        public void phase(ServerMetrics.Phase phase, long timeoutMs) {
+            this.phase = phase;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        }
+
+        /**
+         * no deadline until the next phase starts (for a phase the engine bounds itself, like the handler)
+         */
+        public void pause() {
+            this.deadline = System.nanoTime() + TimeUnit.DAYS.toNanos(1);
+        }
+
+        /**
+         * @return true if the watchdog closed the connection, so I/O errors on it are expected
+         */
+        public boolean expired() {
+            return expired;
+        }
+
+        private synchronized void expire() {
+            if (expired || !watches.remove(this)) {
+                return; // already expired, or the connection finished meanwhile
+            }
+            expired = true;
+            metrics.timedOut(phase);
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void close() {
+            watches.remove(this);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package gemini_lite.protocol;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * In-memory map of everything servable under a document root, kept current by a WatchService.
+ * FileSystemRequestHandler asks it instead of the filesystem, so hits and misses (51/59) are one hash lookup.
+ * The map is filled at startup by walking the tree in parallel; after that a background thread applies
+ * create/delete/modify events and tells whoever registered (the response cache) which path changed.
+ * Symlinked directories are followed (and indexed under the link's path) as long as they point inside the root,
+ * like the stat calls the handler makes without an index; a link back up the tree is not followed again.
+ */
+public class DocumentIndex implements AutoCloseable {
+
+    /**
+     * What a path resolves to: the file to serve and its MIME type.
+     * A null file marks a directory without index.gmi (51).
+     */
+    static final class Resolved {
+        final Path file;
+        final String mimeType;
+
+        Resolved(Path file, String mimeType) {
+            this.file = file;
+            this.mimeType = mimeType;
+        }
+
+        boolean isServable() {
+            return file != null;
+        }
+    }
+
+    private static final Resolved NO_INDEX = new Resolved(null, null);
+
+    private final Path root;
+    private final Map<Path, Resolved> entries = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Set<Path>> watchedDirs = new ConcurrentHashMap<>(); // several paths if linked to
+    private Path realRoot; // root with links resolved, set by start()
+    private final WatchService watcher;
+    private volatile Consumer<Path> onChange = changed -> { };
+    private Thread watchThread;
+
+    /**
+     * @param documentRoot the directory to index, in the same form FileSystemRequestHandler resolves against
+     */
+    public DocumentIndex(Path documentRoot) throws IOException {
+        this.root = documentRoot.normalize();
+        this.watcher = root.getFileSystem().newWatchService();
+    }
+
+    /**
+     * walks the tree (in parallel) to fill the index, then starts watching for changes
+     * @throws IOException if the root can't be read
+     */
+    public void start() throws IOException {
+        if (!Files.isDirectory(root)) {
+            throw new IOException("Not a directory: " + root);
+        }
+        realRoot = root.toRealPath();
+        ForkJoinPool.commonPool().invoke(new Scan(root, Set.of()));
+        watchThread = new Thread(this::watchLoop, "document-index-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+        System.err.println("Indexed " + entries.size() + " paths under " + root);
+    }
+
+    /**
+     * @param onChange called from the watcher thread after the index changed, with the file or directory that
+     *                 changed (for a directory, anything below it may have changed too)
+     */
+    void setOnChange(Consumer<Path> onChange) {
+        this.onChange = (onChange == null) ? changed -> { } : onChange;
+    }
+
+    /**
+     * @param fullPath normalized path under the document root
+     * @return what it resolves to, or null if nothing exists there
+     */
+    Resolved lookup(Path fullPath) {
+        return entries.get(fullPath);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close(); // ends the watch loop
+    }
+
+    /**
+     * Indexes one directory and forks a task per subdirectory.
+     */
+    @SuppressWarnings("serial") // never serialized, it is only Serializable because ForkJoinTask is
+    private final class Scan extends RecursiveAction {
+        private final Path dir;
+        private final Set<Path> above; // real paths of the directories dir was reached through
+
+        Scan(Path dir, Set<Path> above) {
+            this.dir = dir;
+            this.above = above;
+        }
+
+        @Override
+        protected void compute() {
+            final Set<Path> chain = new HashSet<>(above);
+            try {
+                if (!chain.add(dir.toRealPath())) { // a link back up the tree: following it would never end
+                    return;
+                }
+            } catch (IOException e) { // gone meanwhile
+                return;
+            }
+            List<Scan> children = new ArrayList<>();
+            try {
+                watchedDirs.computeIfAbsent(dir.register(watcher,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY), k -> ConcurrentHashMap.newKeySet()).add(dir);
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path child : stream) {
+                        if (isIndexedDirectory(child)) {
+                            children.add(new Scan(child, chain));
+                        } else {
+                            indexFile(child);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Could not index " + dir + ": " + e.getMessage());
+            }
+            indexDirectory(dir);
+            invokeAll(children);
+        }
+    }
+
+    // a real directory, or a link to one inside the root
+    private boolean isIndexedDirectory(Path path) {
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            return true;
+        }
+        if (!Files.isSymbolicLink(path) || !Files.isDirectory(path)) {
+            return false;
+        }
+        try {
+            return path.toRealPath().startsWith(realRoot);
+        } catch (IOException e) { // dangling by now
+            return false;
+        }
+    }
+
+    // real paths of dir and every directory above it up to the root, what a new Scan of a child of dir starts from
+    private Set<Path> chainOf(Path dir) {
+        final Set<Path> chain = new HashSet<>();
+        for (Path p = dir; p != null && p.startsWith(root); p = p.getParent()) {
+            try {
+                chain.add(p.toRealPath());
+            } catch (IOException ignored) { // gone meanwhile
+            }
+        }
+        return chain;
+    }
+
+    private void indexFile(Path file) {
+        if (Files.isRegularFile(file)) { // follows symlinks, like the handler used to
+            entries.put(file, new Resolved(file, FileSystemRequestHandler.getMimeType(file.getFileName().toString())));
+        } else {
+            entries.remove(file);
+        }
+    }
+
+    private void indexDirectory(Path dir) { // a directory resolves to its index.gmi, or to 51 if it has none
+        Path index = dir.resolve("index.gmi");
+        entries.put(dir, Files.isRegularFile(index) ? new Resolved(index, "text/gemini") : NO_INDEX);
+    }
+
+    private void removeTree(Path path) {
+        entries.keySet().removeIf(p -> p.startsWith(path));
+        watchedDirs.entrySet().removeIf(e -> {
+            e.getValue().removeIf(dir -> dir.startsWith(path));
+            if (e.getValue().isEmpty()) { // no other path (link) leads to this directory
+                e.getKey().cancel();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void watchLoop() {
+        while (true) {
+            final WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            final Set<Path> dirs = watchedDirs.get(key);
+            final List<WatchEvent<?>> events = key.pollEvents();
+            for (Path dir : (dirs == null) ? Set.<Path>of() : Set.copyOf(dirs)) { // the same events for every path to it
+                for (WatchEvent<?> event : events) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) { // lost events: rescan this directory
+                        ForkJoinPool.commonPool().invoke(new Scan(dir, chainOf(dir.getParent())));
+                        onChange.accept(dir);
+                        continue;
+                    }
+                    Path child = dir.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        removeTree(child);
+                    } else if (isIndexedDirectory(child)) {
+                        if (!entries.containsKey(child)) { // new directory: index and watch it
+                            ForkJoinPool.commonPool().invoke(new Scan(child, chainOf(dir)));
+                        }
+                    } else {
+                        indexFile(child);
+                    }
+                    if (child.getFileName().toString().equals("index.gmi")) {
+                        indexDirectory(dir);
+                    }
+                    onChange.accept(child);
+                }
+            }
+            if (!key.reset()) { // directory is gone
+                watchedDirs.remove(key);
+            }
+        }
+    }
+}
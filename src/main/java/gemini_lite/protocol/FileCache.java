@@ -0,0 +1,201 @@
+package gemini_lite.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of successful file responses for FileSystemRequestHandler.
+ * Bodies live in direct (off-heap) buffers so they can be written to sockets without another copy.
+ * Entries are re-checked against the file's mtime and size at most once per revalidation interval,
+ * so a hot page is served without any filesystem call in between.
+ */
+public class FileCache {
+    private static final long DEFAULT_REVALIDATE_MS = 1000;
+
+    /**
+     * A cached response: what to reply, the body, and what the file looked like when it was read.
+     */
+    static final class Entry {
+        final Reply reply;
+        final ByteBuffer body; // read-only, always hand out duplicates
+        final Path file;
+        final long lastModified;
+        final long size;
+        volatile long checkedAt; // last time the file was stat'ed and still matched
+
+        Entry(Reply reply, ByteBuffer body, Path file, long lastModified, long size, long checkedAt) {
+            this.reply = reply;
+            this.body = body;
+            this.file = file;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxEntryBytes; // bigger files are streamed with transferTo instead
+    private final long revalidateMs;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true); // access order = LRU
+    private long usedBytes = 0;
+    private long generation = 0; // bumped by clear() and invalidateTree(), so a load that raced with them isn't stored
+
+    /**
+     * @param maxBytes total body bytes the cache may hold
+     */
+    public FileCache(long maxBytes) {
+        this(maxBytes, DEFAULT_REVALIDATE_MS);
+    }
+
+    /**
+     * @param maxBytes total body bytes the cache may hold
+     * @param revalidateMs how long an entry is trusted before the file is stat'ed again
+     */
+    public FileCache(long maxBytes, long revalidateMs) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive");
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.max(1, maxBytes / 8); // one big file shouldn't flush everything else
+        this.revalidateMs = revalidateMs;
+    }
+
+    /**
+     * looks up a response, re-checking the file if the entry is older than the revalidation interval
+     * @param key the request path as FileSystemRequestHandler normalized it
+     * @return the result to send, or null on a miss or when the file changed
+     */
+    HandlerResult get(String key) {
+        final Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - entry.checkedAt > revalidateMs) {
+            if (!stillValid(entry)) {
+                remove(key, entry);
+                return null;
+            }
+            entry.checkedAt = now;
+        }
+        return new HandlerResult(entry.reply, entry.body.duplicate());
+    }
+
+    /**
+     * reads a file into a direct buffer and caches it, if it's small enough
+     * @param key the request path as FileSystemRequestHandler normalized it
+     * @param reply the 20 reply to send with it
+     * @param file the file to serve
+     * @return the cached result, or null if the file is too big to cache (caller streams it instead)
+     */
+    HandlerResult load(String key, Reply reply, Path file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        long size = attrs.size();
+        if (size > maxEntryBytes) {
+            return null;
+        }
+        final long startGeneration;
+        synchronized (this) {
+            startGeneration = generation;
+        }
+        ByteBuffer body = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel channel = FileChannel.open(file)) {
+            while (body.hasRemaining() && channel.read(body) != -1) {
+                // keep reading until the buffer is full
+            }
+        }
+        if (body.hasRemaining()) { // file shrank while we read it, don't cache a torn copy
+            return null;
+        }
+        body.flip();
+        Entry entry = new Entry(reply, body.asReadOnlyBuffer(), file, attrs.lastModifiedTime().toMillis(), size, System.currentTimeMillis());
+        put(key, entry, startGeneration);
+        return new HandlerResult(reply, entry.body.duplicate());
+    }
+
+    private synchronized void put(String key, Entry entry, long startGeneration) {
+        if (generation != startGeneration) { // cleared while we were reading, the copy may be stale
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            usedBytes -= old.size;
+        }
+        usedBytes += entry.size;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) { // evict least recently used first
+            Entry eldest = it.next().getValue();
+            it.remove();
+            usedBytes -= eldest.size;
+        }
+    }
+
+    /**
+     * drops one cached response (no-op if it isn't cached)
+     * @param key the request path as FileSystemRequestHandler normalized it
+     */
+    public synchronized void invalidate(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            usedBytes -= old.size;
+        }
+    }
+
+    /**
+     * drops the cached responses read from path or from anything below it
+     * @param path a file or directory that changed, in the form the handler resolves files in
+     */
+    public synchronized void invalidateTree(Path path) {
+        generation++;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.file.startsWith(path)) {
+                it.remove();
+                usedBytes -= entry.size;
+            }
+        }
+    }
+
+    private synchronized void remove(String key, Entry entry) { // only if nobody replaced it meanwhile
+        if (entries.remove(key, entry)) {
+            usedBytes -= entry.size;
+        }
+    }
+
+    /**
+     * drops everything
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private boolean stillValid(Entry entry) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(entry.file, BasicFileAttributes.class);
+            return attrs.isRegularFile()
+                    && attrs.size() == entry.size
+                    && attrs.lastModifiedTime().toMillis() == entry.lastModified;
+        } catch (IOException e) { // deleted or unreadable -> drop it
+            return false;
+        }
+    }
+}
@@ -1,18 +1,49 @@
 package gemini_lite.protocol;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Serves files from a given documentRoot in response to Gemini requests.
  */
 public class FileSystemRequestHandler implements RequestHandler {
-    private final String documentRoot;
+    private final Path docRootPath; // normalized documentRoot, what every request is resolved against
+    private final FileCache cache; // optional, null means every request goes to the filesystem
+    private final DocumentIndex index; // optional, null means paths are resolved with stat calls
+
     public FileSystemRequestHandler(String documentRoot) { // make a handler that serves files under the given document root
-        this.documentRoot = documentRoot;
+        this(documentRoot, null, null);
+    }
+
+    /**
+     * make a handler that keeps hot responses in the given cache
+     * @param documentRoot directory to serve
+     * @param cache response cache, or null for none
+     */
+    public FileSystemRequestHandler(String documentRoot, FileCache cache) {
+        this(documentRoot, cache, null);
+    }
+
+    /**
+     * make a handler that resolves paths through a watched index (and optionally caches responses)
+     * changes seen by the index drop the affected cache entries, so edits show up right away
+     * @param documentRoot directory to serve
+     * @param cache response cache, or null for none
+     * @param index started index of documentRoot, or null for none
+     */
+    public FileSystemRequestHandler(String documentRoot, FileCache cache, DocumentIndex index) {
+        this.docRootPath = Paths.get(documentRoot).normalize();
+        this.cache = cache;
+        this.index = index;
+        if (index != null && cache != null) {
+            index.setOnChange(cache::invalidateTree); // a directory's entry is its index.gmi, so that is covered too
+        }
     }
 
     /**
@@ -37,44 +68,89 @@ public class FileSystemRequestHandler implements RequestHandler {
         } else if (path.startsWith("/")) {
             path = path.substring(1);
         }
+
         // build a normalized path under documentRoot and collapse ".." etc.
-        Path fullPath = Paths.get(documentRoot).resolve(path).normalize();
-        Path docRootPath = Paths.get(documentRoot).normalize();
+        Path fullPath = docRootPath.resolve(path).normalize();
 
         if (!fullPath.startsWith(docRootPath)) { // prevent access outside documentRoot -> directory traversal
-            return new HandlerResult(new Reply(51, "Not found"));
+            return new HandlerResult(Reply.NOT_FOUND_51);
         }
 
-        File file = fullPath.toFile();
-
-        if (!file.exists()) { // file doesn't exist
-            return new HandlerResult(new Reply(59, "Not found"));
+        // cache key: the normalized path relative to the root, so "a/../b.txt", "b.txt" and "./b.txt" share one entry
+        final String key = docRootPath.relativize(fullPath).toString();
+        if (cache != null) { // hot path: a cached response skips every stat and open below
+            HandlerResult cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
         }
 
-        if (file.isDirectory()) { // if it's a directory, try to serve index.gmi from inside it (otheriwse a mess, sorry!)
-            File index = new File(file, "index.gmi");
-            if (!index.exists() || !index.isFile()) {
-                return new HandlerResult(new Reply(51, "Not found"));
+        final Path target;
+        final String mimeType;
+        if (index != null) { // one hash lookup instead of the stat calls below
+            DocumentIndex.Resolved resolved = index.lookup(fullPath);
+            if (resolved == null) { // file doesn't exist
+                return new HandlerResult(Reply.NOT_FOUND_59);
+            }
+            if (!resolved.isServable()) { // directory without index.gmi
+                return new HandlerResult(Reply.NOT_FOUND_51);
+            }
+            target = resolved.file;
+            mimeType = resolved.mimeType;
+        } else {
+            File file = fullPath.toFile();
+
+            if (!file.exists()) { // file doesn't exist
+                return new HandlerResult(Reply.NOT_FOUND_59);
+            }
+
+            if (file.isDirectory()) { // if it's a directory, try to serve index.gmi from inside it (otheriwse a mess, sorry!)
+                File index = new File(file, "index.gmi");
+                if (!index.exists() || !index.isFile()) {
+                    return new HandlerResult(Reply.NOT_FOUND_51);
+                }
+                file = index;
             }
-            file = index;
-        }
 
-        if (!file.isFile() || !file.canRead()) { // must be a readable file
-            return new HandlerResult(new Reply(50, "Server error"));
+            if (!file.isFile() || !file.canRead()) { // must be a readable file
+                return new HandlerResult(Reply.SERVER_ERROR_50);
+            }
+
+            target = file.toPath();
+            mimeType = getMimeType(file.getName()); // get MIME type for the repsone
         }
 
-        String mimeType = getMimeType(file.getName()); // get MIME type for the repsone
+        try {
+            if (cache != null) { // small files get read into the cache, big ones fall through to transferTo
+                HandlerResult loaded = cache.load(key, Reply.success(mimeType), target);
+                if (loaded != null) {
+                    return loaded;
+                }
+            }
+            return openFile(target, mimeType);
+        } catch (NoSuchFileException e) { // deleted after the index (or the checks above) saw it
+            return new HandlerResult(Reply.NOT_FOUND_59);
+        } catch (AccessDeniedException e) {
+            return new HandlerResult(Reply.SERVER_ERROR_50);
+        }
+    }
 
-        // open file stream and return both reply and body
-        FileInputStream fileBody = new FileInputStream(file);
-        Reply reply = new Reply(20, mimeType);
-        return new HandlerResult(reply, fileBody);
+    // open the file as a channel so the server can transferTo it, and return both reply and body
+    private HandlerResult openFile(Path target, String mimeType) throws Exception {
+        FileChannel fileBody = FileChannel.open(target, StandardOpenOption.READ);
+        try {
+            Reply reply = Reply.success(mimeType);
+            return new HandlerResult(reply, fileBody, fileBody.size());
+        } catch (Exception e) {
+            fileBody.close();
+            throw e;
+        }
     }
 
     /**
      * MIME type detection based on file extension
      */
-    private String getMimeType(String filename) {
+    static String getMimeType(String filename) {
         if (filename.endsWith(".gmi")) {
             return "text/gemini";
         } else if (filename.endsWith(".txt")) {
@@ -1,18 +1,65 @@
 package gemini_lite.protocol;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 
 /**
  * Contains the reply (status + meta) and optional response body stream.
+ * A body can also be file-backed, so the server can send it with transferTo (sendfile) instead of copying it,
+ * or an in-memory buffer that the server writes to the socket directly.
  */
 public class HandlerResult {
     private final Reply reply;
     private final InputStream body;
+    private final FileChannel file; // null unless the body is a file
+    private final long fileLength;
+    private final ByteBuffer buffer; // null unless the body is already in memory
 
     public HandlerResult(Reply reply, InputStream body) {
         if (reply == null) throw new NullPointerException("reply");
         this.reply = reply;
         this.body = body;
+        this.file = null;
+        this.fileLength = -1;
+        this.buffer = null;
+    }
+
+    /**
+     * creates a result whose body is the remaining bytes of an in-memory buffer (e.g. a cached file)
+     * the server may write the buffer to the socket as is; getBody() reads it as a stream
+     * @param reply the reply (status code + meta)
+     * @param buffer body bytes between position and limit, not shared with anyone else
+     * @throws NullPointerException if reply or buffer is null
+     */
+    public HandlerResult(Reply reply, ByteBuffer buffer) {
+        if (reply == null) throw new NullPointerException("reply");
+        if (buffer == null) throw new NullPointerException("buffer");
+        this.reply = reply;
+        this.body = new BufferInputStream(buffer.duplicate());
+        this.file = null;
+        this.fileLength = -1;
+        this.buffer = buffer;
+    }
+
+    /**
+     * creates a result whose body is the first length bytes of an open file
+     * getBody() still works (it reads the same channel), so callers that only know streams are fine
+     * @param reply the reply (status code + meta)
+     * @param file open channel positioned anywhere, the body is sent from position 0
+     * @param length number of bytes to send
+     * @throws NullPointerException if reply or file is null
+     */
+    public HandlerResult(Reply reply, FileChannel file, long length) {
+        if (reply == null) throw new NullPointerException("reply");
+        if (file == null) throw new NullPointerException("file");
+        this.reply = reply;
+        this.body = Channels.newInputStream(file);
+        this.file = file;
+        this.fileLength = length;
+        this.buffer = null;
     }
 
     /**
@@ -21,7 +68,7 @@ public class HandlerResult {
      * @throws NullPointerException if reply is null
      */
     public HandlerResult(Reply reply) {
-        this(reply, null);
+        this(reply, (InputStream) null);
     }
 
     /**
@@ -39,4 +86,69 @@ public class HandlerResult {
     public boolean hasBody() {
         return body != null;
     } // checks if this result has a response body
+
+    public boolean hasFileBody() {
+        return file != null;
+    } // checks if the body can be sent straight from a file
+
+    public FileChannel getFileChannel() {
+        return file;
+    } // the file behind the body, or null
+
+    public long getFileLength() {
+        return fileLength;
+    } // number of body bytes in the file, -1 if not file-backed
+
+    public boolean hasBufferBody() {
+        return buffer != null;
+    } // checks if the body is already in memory
+
+    public ByteBuffer getBufferBody() {
+        return buffer;
+    } // the in-memory body, or null
+
+    /**
+     * closes the body of a result that won't be sent after all (e.g. it arrived after the handler deadline)
+     */
+    public void discard() {
+        try {
+            if (body != null) body.close();
+            if (file != null) file.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Reads a ByteBuffer as a stream, for callers that only deal with InputStreams.
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
 }
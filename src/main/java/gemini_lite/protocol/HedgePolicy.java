@@ -0,0 +1,113 @@
+package gemini_lite.protocol;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * When the proxy sends a second, identical request to an upstream that is slow to answer ("The Tail at Scale").
+ * The hedge goes out once the first request has waited longer than a percentile of that upstream's recent
+ * reply-header latencies, so only the slowest few percent of requests are hedged; a budget caps hedges at a share
+ * of all requests, so a slow upstream doesn't get twice the load exactly when it is struggling.
+ * Windows of upstreams idle for IDLE_MS are swept out and at most MAX_UPSTREAMS are kept (2 KB each); upstreams past
+ * that are simply not hedged.
+ */
+public class HedgePolicy {
+    private static final int WINDOW = 256; // recent latencies kept per upstream
+    private static final int MIN_SAMPLES = 32; // no hedging until an upstream has this many
+    private static final int RECOMPUTE_EVERY = 32; // samples between threshold updates
+    private static final long MIN_DELAY_NANOS = 1_000_000L; // never hedge sooner than 1ms
+    private static final int MAX_UPSTREAMS = 1_000;
+    private static final long IDLE_MS = 10 * 60_000L; // an upstream without samples this long is forgotten
+    private static final long SWEEP_INTERVAL_MS = 10_000;
+    private static final long FULL_SWEEP_INTERVAL_MS = 1_000; // at most once a second when the map is full
+
+    private final double percentile;
+    private final double budget;
+    private final ConcurrentHashMap<String, Window> upstreams = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * @param percentile latency percentile after which to hedge, between 0 and 1 (e.g. 0.95)
+     * @param budget hedges allowed as a share of requests (e.g. 0.1)
+     */
+    public HedgePolicy(double percentile, double budget) {
+        if (percentile <= 0 || percentile >= 1) throw new IllegalArgumentException("percentile must be between 0 and 1");
+        if (budget < 0) throw new IllegalArgumentException("budget must not be negative");
+        this.percentile = percentile;
+        this.budget = budget;
+    }
+
+    /**
+     * a request to upstream is about to go out
+     * @return nanoseconds to wait for its reply header before hedging, or -1 to not hedge (too few samples yet)
+     */
+    public long delayNanos(String upstream) {
+        requests.increment();
+        final Window window = upstreams.get(upstream);
+        return window == null ? -1 : window.threshold;
+    }
+
+    /**
+     * @param upstream "host:port"
+     * @param nanos time until an attempt got its reply header
+     */
+    public void record(String upstream, long nanos) {
+        final long now = System.currentTimeMillis();
+        sweepIfDue(now);
+        Window window = upstreams.get(upstream);
+        if (window == null) {
+            if (upstreams.size() >= MAX_UPSTREAMS) {
+                return;
+            }
+            window = upstreams.computeIfAbsent(upstream, u -> new Window());
+        }
+        window.lastUsed = now;
+        window.add(nanos, percentile);
+    }
+
+    // one thread at a time drops the windows nobody has recorded into for IDLE_MS
+    private void sweepIfDue(long now) {
+        final long last = lastSweep.get();
+        final long due = upstreams.size() >= MAX_UPSTREAMS ? FULL_SWEEP_INTERVAL_MS : SWEEP_INTERVAL_MS;
+        if (now - last < due || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        upstreams.values().removeIf(window -> now - window.lastUsed >= IDLE_MS);
+    }
+
+    /**
+     * takes one hedge from the budget
+     * @return false if hedging now would go over the budget
+     */
+    public boolean tryHedge() {
+        if (hedges.sum() >= requests.sum() * budget) {
+            return false;
+        }
+        hedges.increment();
+        return true;
+    }
+
+    /**
+     * Ring of one upstream's recent latencies. Writers race on slots, which only makes the sample slightly fuzzy.
+     */
+    private static final class Window {
+        private final long[] samples = new long[WINDOW];
+        private final AtomicLong count = new AtomicLong();
+        volatile long threshold = -1;
+        volatile long lastUsed;
+
+        void add(long nanos, double percentile) {
+            final long n = count.getAndIncrement();
+            samples[(int) (n % WINDOW)] = nanos;
+            if (n + 1 >= MIN_SAMPLES && (n + 1) % RECOMPUTE_EVERY == 0) {
+                final long[] sorted = Arrays.copyOf(samples, (int) Math.min(n + 1, WINDOW));
+                Arrays.sort(sorted);
+                threshold = Math.max(MIN_DELAY_NANOS, sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)]);
+            }
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package gemini_lite.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shared cache of upstream "20" responses for ProxyRequestHandler, bounded by TTL and total bytes (LRU eviction).
+ * Concurrent misses for the same URI are coalesced: the first request fetches, everyone else gets a future that
+ * completes with its reply (no thread waits for it) and then streams the body from a shared buffer while it is still
+ * being downloaded.
+ * Bytes of downloads still in flight count toward the limit too: a download that doesn't fit (after evicting completed
+ * entries) is treated like one that outgrew the per-entry limit.
+ * A body that outgrows the per-entry limit is still delivered to whoever joined, it just isn't kept afterwards:
+ * from then on chunks every reader is past are dropped, and the download waits for the slowest reader,
+ * so it never holds more than the per-entry limit in memory however big the body is.
+ */
+public class ProxyCache {
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Fetches a response from upstream on a miss, without blocking the caller.
+     */
+    public interface Loader {
+        CompletableFuture<HandlerResult> load();
+    }
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long ttlMs;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true); // access order = LRU
+    private long usedBytes = 0; // bytes of completed entries
+    private long inFlightBytes = 0; // bytes buffered by downloads that are still meant to be kept
+    private final ExecutorService pumps = Executors.newVirtualThreadPerTaskExecutor(); // one per in-flight download
+
+    /**
+     * @param maxBytes total body bytes kept for completed responses
+     * @param ttlMs how long a completed response is served before it is fetched again
+     */
+    public ProxyCache(long maxBytes, long ttlMs) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive");
+        if (ttlMs <= 0) throw new IllegalArgumentException("ttlMs must be positive");
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.max(1, maxBytes / 8); // one big download shouldn't flush everything else
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * returns the cached or in-flight response for key, or runs loader to fetch it
+     * @param key request URI
+     * @param loader upstream fetch, only called if nobody else is fetching key right now
+     * @return completes with the result once the reply header is known, bodies of 20 replies are read from the shared
+     *         buffer; completes exceptionally with whatever the loader failed with (waiting requests get it too)
+     */
+    public CompletableFuture<HandlerResult> get(String key, Loader loader) {
+        final Entry entry;
+        final Reader reader; // registered before the entry can start dropping chunks
+        boolean leader = false;
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            if (existing != null && existing.isUsable(System.currentTimeMillis())) {
+                entry = existing;
+            } else {
+                if (existing != null) {
+                    remove(key, existing);
+                }
+                entry = new Entry(key);
+                entries.put(key, entry);
+                leader = true;
+            }
+            reader = entry.join();
+        }
+
+        if (!leader) { // async: whoever gets the result may start reading the body, never on the leader's thread
+            return entry.published.thenApplyAsync(reply -> entry.hasBody ? new HandlerResult(reply, reader) : new HandlerResult(reply), pumps);
+        }
+        CompletableFuture<HandlerResult> loaded;
+        try {
+            loaded = loader.load();
+        } catch (RuntimeException e) {
+            loaded = CompletableFuture.failedFuture(e);
+        }
+        return loaded.handle((result, error) -> {
+            if (error != null) {
+                final Throwable cause = (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error;
+                entry.fail(cause instanceof Exception e ? e : new CompletionException(cause));
+                synchronized (this) {
+                    remove(key, entry);
+                }
+                throw (error instanceof CompletionException c) ? c : new CompletionException(error);
+            }
+            Reply reply = result.getReply();
+            if (reply.getStatus() != 20 || !result.hasBody()) { // only successes are shared and kept
+                entry.publish(reply, false);
+                synchronized (this) {
+                    remove(key, entry);
+                }
+                return result;
+            }
+            entry.publish(reply, true);
+            final InputStream upstream = result.getBody();
+            pumps.execute(() -> pump(entry, upstream));
+            return new HandlerResult(reply, reader);
+        });
+    }
+
+    /**
+     * drops everything (in-flight downloads keep serving whoever already joined)
+     */
+    public synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return bytes buffered by downloads still in flight that count toward the limit
+     */
+    public synchronized long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // copies the upstream body into the shared buffer, waking readers as chunks arrive
+    private void pump(Entry entry, InputStream upstream) {
+        try (upstream) {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int n;
+            boolean kept = true;
+            long reserved = 0; // this entry's share of inFlightBytes
+            try {
+                while ((n = upstream.read(chunk)) != -1) {
+                    entry.append(chunk, n);
+                    if (kept && entry.size() <= maxEntryBytes && reserve(n)) {
+                        reserved += n;
+                    } else if (kept) { // too big to keep (or no room left), stop new requests from joining
+                        kept = false;
+                        synchronized (this) {
+                            inFlightBytes -= reserved;
+                            reserved = 0;
+                            remove(entry.key, entry);
+                        }
+                        entry.startStreaming(); // nobody can join any more, so chunks all readers are past can go
+                    }
+                    if (!kept && !entry.awaitReaders(maxEntryBytes)) { // every reader went away: stop downloading
+                        entry.fail(new IOException("No readers left"));
+                        return;
+                    }
+                }
+                synchronized (this) { // complete and count it in one step, so remove() never subtracts uncounted bytes
+                    entry.complete(System.currentTimeMillis() + ttlMs);
+                    inFlightBytes -= reserved; // now counted in usedBytes instead, if it stays
+                    reserved = 0;
+                    if (kept && entries.get(entry.key) == entry) {
+                        usedBytes += entry.size();
+                        evict();
+                    }
+                }
+            } finally {
+                synchronized (this) { // completed, failed or streamed: either way no longer in flight
+                    inFlightBytes -= reserved;
+                }
+            }
+        } catch (IOException e) {
+            entry.fail(e);
+            synchronized (this) {
+                remove(entry.key, entry);
+            }
+        }
+    }
+
+    // counts n more in-flight bytes, evicting completed entries to make room; false if they don't fit even so
+    private synchronized boolean reserve(long n) {
+        inFlightBytes += n;
+        evict();
+        if (usedBytes + inFlightBytes > maxBytes) {
+            inFlightBytes -= n;
+            return false;
+        }
+        return true;
+    }
+
+    private void evict() { // caller holds the lock; only completed entries get evicted, in-flight ones count though
+        Iterator<Entry> it = entries.values().iterator();
+        while (usedBytes + inFlightBytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next();
+            if (eldest.isComplete()) {
+                it.remove();
+                usedBytes -= eldest.size();
+            }
+        }
+    }
+
+    private void remove(String key, Entry entry) { // caller holds the lock
+        if (entries.remove(key, entry) && entry.isComplete()) {
+            usedBytes -= entry.size();
+        }
+    }
+
+    /**
+     * One response: the reply once known, then body chunks as they arrive.
+     * Everything is guarded by the entry's own monitor, readers wait on it for more data.
+     */
+    private static final class Entry {
+        final String key;
+        private Reply reply;
+        private boolean hasBody;
+        private final List<byte[]> chunks = new ArrayList<>(); // chunks.get(0) starts at body offset base
+        private final List<Reader> readers = new ArrayList<>(); // open readers, their positions decide what can be dropped
+        private long base = 0; // multiple of CHUNK_SIZE, only grows once streaming
+        private boolean streaming = false;
+        private long size = 0;
+        private boolean complete = false;
+        private Exception failure;
+        private long expiresAt = Long.MAX_VALUE; // in-flight entries never expire
+        final CompletableFuture<Reply> published = new CompletableFuture<>(); // what the coalesced requests wait on
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        void publish(Reply reply, boolean hasBody) {
+            synchronized (this) {
+                this.reply = reply;
+                this.hasBody = hasBody;
+                if (!hasBody) {
+                    complete = true;
+                }
+                notifyAll();
+            }
+            published.complete(reply);
+        }
+
+        synchronized void append(byte[] src, int length) { // packs bytes into full CHUNK_SIZE chunks
+            int off = 0;
+            while (off < length) {
+                int used = (int) (size % CHUNK_SIZE);
+                if (used == 0) {
+                    chunks.add(new byte[CHUNK_SIZE]);
+                }
+                int n = Math.min(CHUNK_SIZE - used, length - off);
+                System.arraycopy(src, off, chunks.get(chunks.size() - 1), used, n);
+                off += n;
+                size += n;
+            }
+            notifyAll();
+        }
+
+        synchronized Reader join() {
+            Reader reader = new Reader(this);
+            if (!complete) { // a complete entry never streams, so its readers needn't be tracked
+                readers.add(reader);
+            }
+            return reader;
+        }
+
+        synchronized void startStreaming() {
+            streaming = true;
+            release();
+        }
+
+        /**
+         * download side, once streaming: waits until the slowest reader is less than limit bytes behind
+         * @return false if no reader is left
+         */
+        synchronized boolean awaitReaders(long limit) {
+            while (!readers.isEmpty() && size - slowest() >= limit) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return !readers.isEmpty();
+        }
+
+        private long slowest() { // caller holds the monitor
+            long min = size;
+            for (Reader r : readers) {
+                min = Math.min(min, r.position);
+            }
+            return min;
+        }
+
+        // drops the chunks every reader is past; caller holds the monitor
+        private void release() {
+            if (!streaming) {
+                return;
+            }
+            final long min = slowest();
+            while (!chunks.isEmpty() && base + CHUNK_SIZE <= min) {
+                chunks.remove(0);
+                base += CHUNK_SIZE;
+            }
+            notifyAll(); // the download may be waiting for room
+        }
+
+        synchronized void complete(long expiresAt) {
+            this.complete = true;
+            this.expiresAt = expiresAt;
+            notifyAll();
+        }
+
+        void fail(Exception e) {
+            synchronized (this) {
+                this.failure = e;
+                notifyAll();
+            }
+            published.completeExceptionally(e); // no-op once the reply is out, then only the body fails
+        }
+
+        synchronized long size() {
+            return size;
+        }
+
+        synchronized boolean isComplete() {
+            return complete;
+        }
+
+        synchronized boolean isUsable(long now) {
+            return failure == null && now < expiresAt;
+        }
+    }
+
+    /**
+     * Streams one entry's body from the shared chunks, blocking while the download is behind.
+     */
+    private static final class Reader extends InputStream {
+        private final Entry entry;
+        private long position = 0;
+
+        Reader(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            synchronized (entry) {
+                while (position >= entry.size && !entry.complete && entry.failure == null) {
+                    try {
+                        entry.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for upstream", e);
+                    }
+                }
+                if (position >= entry.size) {
+                    if (entry.failure != null) {
+                        throw new IOException("Upstream failed: " + entry.failure.getMessage(), entry.failure);
+                    }
+                    return -1;
+                }
+                int index = (int) ((position - entry.base) / CHUNK_SIZE); // every chunk but the last is full
+                int offset = (int) (position % CHUNK_SIZE);
+                int n = (int) Math.min(len, Math.min(CHUNK_SIZE - offset, entry.size - position));
+                System.arraycopy(entry.chunks.get(index), offset, b, off, n);
+                position += n;
+                entry.release();
+                return n;
+            }
+        }
+
+        @Override
+        public void close() { // stops holding the download back
+            synchronized (entry) {
+                if (entry.readers.remove(this)) {
+                    entry.release();
+                }
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (entry) {
+                return (int) Math.min(Integer.MAX_VALUE, entry.size - position);
+            }
+        }
+    }
+}
@@ -1,97 +1,354 @@
 package gemini_lite.protocol;
 
-import java.io.InputStream;
 import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 import gemini_lite.engine.ClientEngine;
+import gemini_lite.engine.Response;
 
 /**
  * Handles Gemini-Lite proxy requests -> following redirects
+ * 44 (slow down) replies are retried later from a timer, so no thread sleeps while we wait
+ * optionally hedged: a request whose upstream is slower than usual gets a second one racing it (see HedgePolicy)
+ * with a pool, every request goes to one of a set of backends (picked by consistent hashing) instead of the URI's host
  */
 public class ProxyRequestHandler implements RequestHandler {
     private static final int MAX_REDIRECTS = 5;
-    private static final long RETRY_DELAY_MS = 1000L;  // delay (in msec) before retrying after a temporary failure
+    private static final int MAX_SLOW_DOWNS = 5; // retry budget for 44 replies, after that the 44 is passed on
+    private static final long BACKOFF_BASE_MS = 250L; // jittered exponential backoff added on top of the upstream's delay
+    private static final long MAX_RETRY_DELAY_MS = 60_000L;
+
+    // one timer thread for every pending retry; the retried request itself runs on a fresh virtual thread
+    private static final ScheduledExecutorService RETRY_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "proxy-retry-timer");
+        t.setDaemon(true);
+        return t;
+    });
 
     private final ClientEngine engine;
+    private final ProxyCache cache; // optional shared response cache, null means always go upstream
+    private final UpstreamHealth health = new UpstreamHealth(); // circuit breaker per upstream host:port
+    private volatile ServerMetrics metrics; // optional, gets upstream latency per host
+    private volatile HedgePolicy hedging; // null means one request per upstream fetch
+    private volatile UpstreamPool pool; // null means go to the host the URI names
 
     public ProxyRequestHandler(ClientEngine engine) {
+        this(engine, null);
+    }
+
+    /**
+     * @param engine engine for upstream fetches, shared by all requests (fetch is thread-safe)
+     * @param cache shared cache for 20 responses and in-flight requests, or null for none
+     */
+    public ProxyRequestHandler(ClientEngine engine, ProxyCache cache) {
         if (engine == null){
             throw new NullPointerException("engine");
         }
         this.engine = engine;
+        this.cache = cache;
     }
 
     /**
      * handles an incoming request, following redirects and retrying
      * repeating failures up to certain limits (so it doesn't go on forever)
+     * with a cache, concurrent requests for the same URI share one upstream fetch
      * @param request The request to process.
      * @return A HandlerResult containing the remote server reply and body.
      */
     @Override
     public HandlerResult handle(Request request) throws Exception {
-        URI target = request.getURI();
-        int redirectCount = 0; // keep track of redirects (as max is 5)
-        while (true) {  // loop until a valid reply is obtained or retry limit is reached
-            try {
-                ClientEngine reqEngine = new ClientEngine();
-                Reply remoteReply = reqEngine.sendRequest(new URI(target.toString()));
-                int group = remoteReply.getStatusGroup();
+        return await(handleAsync(request));
+    }
 
-                 if (group == 1 || group == 2) { // status group 1 or 2 —> just return the response
-                    return new HandlerResult(remoteReply, reqEngine.getLastResponseBody());
-                }
+    /**
+     * like handle, but a request waiting out a 44 (or for a coalesced fetch) doesn't hold the calling thread
+     */
+    @Override
+    public CompletableFuture<HandlerResult> handleAsync(Request request) {
+        if (cache != null) {
+            return cache.get(request.getURI().toString(), () -> fetch(request.getURI(), 0, 0));
+        }
+        return fetch(request.getURI(), 0, 0);
+    }
 
-                if (group == 3) { // handle redirection
-                    String location = remoteReply.getMessage();
+    private static HandlerResult await(CompletableFuture<HandlerResult> future) throws Exception {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
 
-                    if (location.contains(" ") || location.isEmpty()) { // invalid redirect URIs are treated as proxy errors
-                        closeResponseBody(reqEngine);
-                        return new HandlerResult(new Reply(43, "Proxy error: invalid redirection URI"));
-                    }
+    /**
+     * goes upstream for target, following redirects; on 44 it schedules another try and returns right away
+     * the upstream exchange runs on the engine's shared connector, so no thread waits for the reply header
+     * @param target the URI the client asked for
+     * @param redirectCount redirects followed so far
+     * @param slowDowns 44 replies seen so far
+     * @return A future HandlerResult containing the remote server reply and body.
+     */
+    private CompletableFuture<HandlerResult> fetch(URI target, int redirectCount, int slowDowns) {
+        final UpstreamPool backends = pool;
+        // a backend whose circuit is open is skipped like a down one, so its keys fail over instead of failing fast
+        final UpstreamPool.Node node = (backends != null) ? backends.pick(target.toString(), n -> health.allowRequest(n.toString())) : null;
+        if (backends != null && node == null) {
+            return done(proxyError("no healthy backend"));
+        }
+        final String upstream = (node != null) ? node.toString() : upstreamOf(target);
+        if (node == null && !health.allowRequest(upstream)) { // upstream has been failing: answer right away instead of waiting for timeouts
+            return done(proxyError("upstream " + upstream + " unavailable (circuit open)"));
+        }
+        final long started = System.nanoTime();
+        return upstreamFetch(target, upstream, node).handle((response, error) -> {
+            if (error != null) {
+                health.recordFailure(upstream);
+                if (node != null) {
+                    backends.failure(node);
+                }
+                Throwable cause = (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error;
+                String msg = cause.getMessage() != null ? cause.getMessage() : "Unknown proxy error";
+                return done(proxyError(msg));
+            }
+            final long latency = System.nanoTime() - started;
+            health.recordSuccess(upstream, latency / 1_000_000L);
+            if (node != null) {
+                backends.success(node);
+            }
+            final ServerMetrics m = metrics;
+            if (m != null) {
+                m.upstreamLatency(upstream, latency);
+            }
+            try {
+                return onReply(target, response, redirectCount, slowDowns);
+            } catch (Exception e) {
+                response.close();
+                String msg = e.getMessage() != null ? e.getMessage() : "Unknown proxy error";
+                return done(proxyError(msg));
+            }
+        }).thenCompose(next -> next);
+    }
 
-                    if (++redirectCount > MAX_REDIRECTS) { // is we have more than 5 redirects, we give an error
-                        return new HandlerResult(new Reply(50, "Too many redirections (limit is 5 ;( )"));
-                    }
+    /**
+     * sends the request upstream; with hedging on and the upstream's latencies known, a second identical request
+     * goes out once the first has waited past the hedging percentile. The first reply header wins, the other request
+     * is cancelled (closing its connection), and the result only fails once every request sent has failed.
+     * Safe because gemini-lite requests are idempotent.
+     */
+    private CompletableFuture<Response> upstreamFetch(URI target, String upstream, UpstreamPool.Node node) {
+        final HedgePolicy policy = hedging;
+        if (policy == null) {
+            return send(target, node);
+        }
+        final long delay = policy.delayNanos(upstream);
+        final CompletableFuture<Response> primary = attempt(policy, target, upstream, node, true);
+        if (delay < 0) { // not enough samples for this upstream yet
+            return primary;
+        }
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        final AtomicInteger running = new AtomicInteger(1); // requests that may still answer
+        final AtomicReference<CompletableFuture<Response>> hedge = new AtomicReference<>();
+        primary.whenComplete((response, error) -> settle(result, running, response, error, hedge.get(), false));
+        final ScheduledFuture<?> timer = RETRY_TIMER.schedule(() -> {
+            if (result.isDone() || !policy.tryHedge()) {
+                return;
+            }
+            if (running.getAndUpdate(n -> n == 0 ? 0 : n + 1) == 0) { // the first one just failed, result is failing too
+                return;
+            }
+            final ServerMetrics m = metrics;
+            if (m != null) {
+                m.upstreamHedged();
+            }
+            final CompletableFuture<Response> second = attempt(policy, target, upstream, node, false);
+            hedge.set(second);
+            second.whenComplete((response, error) -> settle(result, running, response, error, primary, true));
+            if (result.isDone()) { // the first reply came in while this one was starting
+                second.cancel(false);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+        result.whenComplete((r, e) -> timer.cancel(false));
+        return result;
+    }
 
-                    closeResponseBody(reqEngine);
-                    target = resolveRedirectUri(target, location);
-                    if (target == null) {
-                        return new HandlerResult(new Reply(43, "Proxy error: invalid redirection URI"));
-                    }
-                    continue; // retry with the new location
-                }
+    // one upstream request, its latency recorded for the hedging threshold
+    private CompletableFuture<Response> attempt(HedgePolicy policy, URI target, String upstream, UpstreamPool.Node node, boolean primary) {
+        final long started = System.nanoTime();
+        final CompletableFuture<Response> future = send(target, node);
+        future.whenComplete((response, error) -> {
+            // a first request cancelled because the hedge won was at least this slow, so it counts too;
+            // leaving it out would pull the threshold down and hedge ever more requests
+            if (error == null || (primary && future.isCancelled())) {
+                policy.record(upstream, System.nanoTime() - started);
+            }
+        });
+        return future;
+    }
 
-                 if (group == 4 && remoteReply.getStatus() == 44) {
-                    closeResponseBody(reqEngine);
-                    Thread.sleep(RETRY_DELAY_MS);
-                    continue;
-                }
-                return new HandlerResult(remoteReply, reqEngine.getLastResponseBody()); // for all other responses, forward reply back to client as-is
+    // to the pool's backend if there is one, else to the URI's host
+    private CompletableFuture<Response> send(URI target, UpstreamPool.Node node) {
+        return (node != null) ? engine.fetch(target, node.host(), node.port()) : engine.fetch(target);
+    }
 
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
-                return new HandlerResult(new Reply(40, "Server error: interrupted"));
-            } catch (Exception e) {
-                String msg = e.getMessage() != null ? e.getMessage() : "Unknown proxy error";
-                return new HandlerResult(new Reply(43, "Proxy error: " + msg));
+    // one of the racing requests finished: the first reply wins, later ones are closed
+    private void settle(CompletableFuture<Response> result, AtomicInteger running, Response response, Throwable error,
+                        CompletableFuture<Response> other, boolean isHedge) {
+        if (error != null) {
+            if (running.decrementAndGet() == 0) {
+                result.completeExceptionally(error);
             }
+            return;
+        }
+        if (!result.complete(response)) {
+            response.close();
+            return;
+        }
+        if (other != null) {
+            other.cancel(false);
+        }
+        final ServerMetrics m = metrics;
+        if (isHedge && m != null) {
+            m.hedgeWon();
         }
     }
+
     /**
-     * Reads and closes the last response body safely.
-     * Used to release system resources after a request is done or aborted.
-     * @param reqEngine The engine whose last response stream should be closed.
+     * decides what to do with an upstream reply: pass it on, follow a redirect or retry later
      */
-    private void closeResponseBody(ClientEngine reqEngine) {
+    private CompletableFuture<HandlerResult> onReply(URI target, Response response, int redirectCount, int slowDowns) throws Exception {
+        final Reply remoteReply = response.getReply();
+        int group = remoteReply.getStatusGroup();
+
+        if (group == 1 || group == 2) { // status group 1 or 2 —> just return the response
+            return done(new HandlerResult(remoteReply, response.getBody()));
+        }
+
+        if (group == 3) { // handle redirection
+            response.close();
+            String location = remoteReply.getMessage();
+
+            if (location.contains(" ") || location.isEmpty()) { // invalid redirect URIs are treated as proxy errors
+                return done(new HandlerResult(new Reply(43, "Proxy error: invalid redirection URI")));
+            }
+
+            if (redirectCount + 1 > MAX_REDIRECTS) { // is we have more than 5 redirects, we give an error
+                return done(new HandlerResult(new Reply(50, "Too many redirections (limit is 5 ;( )")));
+            }
+
+            URI next = resolveRedirectUri(target, location);
+            if (next == null) {
+                return done(new HandlerResult(new Reply(43, "Proxy error: invalid redirection URI")));
+            }
+            return fetch(next, redirectCount + 1, slowDowns); // retry with the new location
+        }
+
+        if (group == 4 && remoteReply.getStatus() == 44) {
+            response.close();
+            if (slowDowns >= MAX_SLOW_DOWNS) { // out of retries: let the client do the waiting
+                return done(new HandlerResult(remoteReply));
+            }
+            return later(retryDelayMs(remoteReply.getMessage(), slowDowns),
+                    () -> fetch(target, redirectCount, slowDowns + 1));
+        }
+        return done(new HandlerResult(remoteReply, response.getBody())); // for all other responses, forward reply back to client as-is
+    }
+
+    private static HandlerResult proxyError(String msg) {
         try {
-            InputStream body = reqEngine.getLastResponseBody();
-            if (body != null){
-                body.readAllBytes(); // drain remaining data
-                body.close();
+            return new HandlerResult(new Reply(43, "Proxy error: " + msg));
+        } catch (ProtocolSyntaxException e) { // 43 is always a valid status
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static CompletableFuture<HandlerResult> done(HandlerResult result) {
+        return CompletableFuture.completedFuture(result);
+    }
+
+    /**
+     * runs next after delayMs without blocking anyone in the meantime
+     * @return a future that completes with whatever next's future completes with
+     */
+    private static CompletableFuture<HandlerResult> later(long delayMs, Supplier<CompletableFuture<HandlerResult>> next) {
+        final CompletableFuture<HandlerResult> result = new CompletableFuture<>();
+        RETRY_TIMER.schedule(() -> Thread.startVirtualThread(() -> next.get().whenComplete((r, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(r);
             }
-        } catch (Exception ignored) {
+        })), delayMs, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    /**
+     * how long to wait before retry number attempt + 1:
+     * the seconds the upstream asked for (meta of the 44), plus a random share of an exponentially growing backoff
+     * @param meta meta field of the 44 reply
+     * @param attempt 44 replies seen before this one
+     * @return delay in milliseconds
+     */
+    static long retryDelayMs(String meta, int attempt) {
+        long advertised;
+        try {
+            advertised = Math.max(0, Long.parseLong(meta.trim())) * 1000L;
+        } catch (NumberFormatException e) { // non-numeric meta: only the backoff applies
+            advertised = 0;
+        }
+        long backoff = BACKOFF_BASE_MS << Math.min(attempt, 10);
+        long jitter = ThreadLocalRandom.current().nextLong(backoff + 1); // full jitter, so retries from many clients spread out
+        return Math.min(MAX_RETRY_DELAY_MS, advertised + jitter);
+    }
+    /**
+     * records upstream latency per host (and shows the circuit breakers) in the given metrics
+     * @param metrics usually the proxy Server's, null to stop recording
+     */
+    public void setMetrics(ServerMetrics metrics) {
+        this.metrics = metrics;
+        if (metrics != null) {
+            metrics.setUpstreamHealth(health);
         }
     }
+
+    /**
+     * turns hedging on (or off with null)
+     * @param hedging when to send a second request, shared by all requests of this handler
+     */
+    public void setHedging(HedgePolicy hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * sends every request to a backend of pool (by consistent hash of the URI) instead of the URI's host,
+     * so the proxy fronts a set of Servers serving one capsule; null goes back to normal proxying
+     */
+    public void setPool(UpstreamPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return per-upstream circuit breaker state, for monitoring
+     */
+    public UpstreamHealth getUpstreamHealth() {
+        return health;
+    }
+
+    // "host:port" the request for target goes to (1958 when the URI has no port, like ClientEngine)
+    private static String upstreamOf(URI target) {
+        return target.getHost() + ":" + (target.getPort() == -1 ? 1958 : target.getPort());
+    }
+
     /**
      * resolves the new redirection URI relative to the current base URI
      * @param base The base URI from the current request.
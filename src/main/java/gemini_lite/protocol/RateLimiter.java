@@ -0,0 +1,87 @@
+package gemini_lite.protocol;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket per client IP address, so one client can't take all the server's threads.
+ * Each bucket is a single AtomicLong holding the time at which it is full again
+ * (the "generic cell rate algorithm" form of a token bucket), so taking a token is one CAS and
+ * clients never wait on each other; the map itself is a ConcurrentHashMap.
+ * Full buckets carry no information, so they are swept out now and then; that keeps the map
+ * at the number of clients seen recently, and never above maxClients.
+ */
+public class RateLimiter {
+    private static final long SWEEP_INTERVAL_NANOS = 10_000_000_000L; // normal sweep every 10s
+    private static final long FULL_SWEEP_INTERVAL_NANOS = 1_000_000_000L; // at most once a second when the map is full
+
+    private final long interval; // nanos per token
+    private final long tolerance; // how far ahead of now a bucket may run: burst - 1 tokens
+    private final int maxClients;
+    private final ConcurrentHashMap<InetAddress, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param perSecond requests per second each address may make on average
+     * @param burst requests an address may make at once after being quiet
+     * @param maxClients addresses tracked at most; new addresses beyond that aren't limited until a sweep makes room
+     */
+    public RateLimiter(int perSecond, int burst, int maxClients) {
+        if (perSecond < 1) throw new IllegalArgumentException("perSecond must be at least 1");
+        if (burst < 1) throw new IllegalArgumentException("burst must be at least 1");
+        this.interval = 1_000_000_000L / perSecond;
+        this.tolerance = (burst - 1) * interval;
+        this.maxClients = maxClients;
+    }
+
+    /**
+     * takes a token for the client
+     * @param remote the client's address (the port is ignored, every connection has its own)
+     * @return 0 if the request may go ahead, otherwise how many seconds the client should wait (for "44 <seconds>")
+     */
+    public int acquire(SocketAddress remote) {
+        if (!(remote instanceof InetSocketAddress address) || address.getAddress() == null) {
+            return 0;
+        }
+        final long now = System.nanoTime();
+        sweepIfDue(now);
+        AtomicLong bucket = buckets.get(address.getAddress());
+        if (bucket == null) {
+            if (buckets.size() >= maxClients) { // fail open rather than grow without bound
+                return 0;
+            }
+            bucket = buckets.computeIfAbsent(address.getAddress(), a -> new AtomicLong(now));
+        }
+        while (true) {
+            final long fullAt = bucket.get();
+            final long base = Math.max(fullAt, now); // a bucket that filled up in the past starts from now
+            final long ahead = base - now;
+            if (ahead > tolerance) { // out of tokens
+                return (int) Math.max(1, (ahead - tolerance + 999_999_999L) / 1_000_000_000L);
+            }
+            if (bucket.compareAndSet(fullAt, base + interval)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @return addresses currently tracked
+     */
+    public int trackedClients() {
+        return buckets.size();
+    }
+
+    // one thread at a time drops the buckets that have filled up again
+    private void sweepIfDue(long now) {
+        final long last = lastSweep.get();
+        final long due = buckets.size() >= maxClients ? FULL_SWEEP_INTERVAL_NANOS : SWEEP_INTERVAL_NANOS;
+        if (now - last < due || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        buckets.values().removeIf(bucket -> bucket.get() <= now);
+    }
+}
@@ -3,15 +3,36 @@ package gemini_lite.protocol;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /**
  * Represents a single reply line (status + meta/message).
+ * The wire form is encoded once when the reply is made; the replies the server sends all the time are shared constants.
  */
 public final class Reply {
 
+    // constant replies, reused instead of building and encoding a new one per request
+    public static final Reply NOT_FOUND_51 = constant(51, "Not found");
+    public static final Reply NOT_FOUND_59 = constant(59, "Not found");
+    public static final Reply BAD_REQUEST = constant(59, "Bad request");
+    public static final Reply READ_ERROR = constant(59, "Read error");
+    public static final Reply SERVER_ERROR_40 = constant(40, "Server error");
+    public static final Reply SERVER_ERROR_50 = constant(50, "Server error");
+    public static final Reply TEXT_GEMINI = constant(20, "text/gemini");
+    public static final Reply TEXT_PLAIN = constant(20, "text/plain");
+    public static final Reply OCTET_STREAM = constant(20, "application/octet-stream");
+
+    private static final Reply[] SLOW_DOWN = new Reply[61]; // "44 <seconds>" for 1..60, see slowDown
+    static {
+        for (int seconds = 1; seconds < SLOW_DOWN.length; seconds++) {
+            SLOW_DOWN[seconds] = constant(44, Integer.toString(seconds));
+        }
+    }
+
     private final int status;  // status code in the range 10–59
     private final String message;
+    private final byte[] headerBytes; // "<status> <message>\r\n" in UTF-8, never handed out directly
 
     /**
      * creates a Reply with a status code and message
@@ -31,6 +52,43 @@ public final class Reply {
         }
 
         this.status = status;
+        this.headerBytes = (status + " " + this.message + Wire.CRLF).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Reply constant(int status, String message) {
+        try {
+            return new Reply(status, message);
+        } catch (ProtocolSyntaxException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * a "44 <seconds>" reply, shared for waits up to a minute
+     * @param seconds how long the client should wait, at least 1
+     * @return the reply
+     */
+    public static Reply slowDown(int seconds) {
+        seconds = Math.max(1, seconds);
+        return seconds < SLOW_DOWN.length ? SLOW_DOWN[seconds] : constant(44, Integer.toString(seconds));
+    }
+
+    /**
+     * a 20 reply for the given MIME type, shared for the types the file server uses
+     * @param mimeType MIME type for the meta field
+     * @return the reply
+     */
+    public static Reply success(String mimeType) throws ProtocolSyntaxException {
+        switch (mimeType) {
+            case "text/gemini":
+                return TEXT_GEMINI;
+            case "text/plain":
+                return TEXT_PLAIN;
+            case "application/octet-stream":
+                return OCTET_STREAM;
+            default:
+                return new Reply(20, mimeType);
+        }
     }
 
     /**
@@ -80,11 +138,34 @@ public final class Reply {
         return fromHeaderLine(line);
     }
 
-    // writes this reply to an OutputStream using Gemini wire format
+    // writes this reply to an OutputStream using Gemini wire format; doesn't flush, the body write or close does
     public void writeTo(OutputStream out) throws IOException {
-        String wireline = status + " " + message + Wire.CRLF;
-        out.write(wireline.getBytes(StandardCharsets.UTF_8));
-        out.flush();
+        out.write(headerBytes);
+    }
+
+    // the header line in Gemini wire format (status, space, meta, CRLF) as UTF-8 bytes (a copy)
+    public byte[] getHeaderBytes() {
+        return headerBytes.clone();
+    }
+
+    // the encoded header as a fresh read-only buffer, ready for a (gathering) channel write without copying
+    public ByteBuffer headerBuffer() {
+        return ByteBuffer.wrap(headerBytes).asReadOnlyBuffer();
+    }
+
+    // length of the encoded header in bytes
+    public int headerLength() {
+        return headerBytes.length;
+    }
+
+    /**
+     * copies the encoded header into dst, so a caller can send it in the same write as the start of the body
+     * @return number of bytes copied (headerLength())
+     * @throws IndexOutOfBoundsException if dst is too small
+     */
+    public int copyHeaderTo(byte[] dst, int offset) {
+        System.arraycopy(headerBytes, 0, dst, offset, headerBytes.length);
+        return headerBytes.length;
     }
 
     public int getStatus(){
@@ -21,7 +21,15 @@ public final class Request {
      * @return the parsed Request object
      */
     public static Request parse(InputStream in) throws IOException, URISyntaxException {
-        String line = Wire.readHeaderLine(in);
+        return fromHeaderLine(Wire.readHeaderLine(in));
+    }
+
+    /**
+     * parses an already-read request line (without CRLF) into a Request
+     * @param line the raw request line
+     * @return the parsed Request object
+     */
+    public static Request fromHeaderLine(String line) throws ProtocolSyntaxException, URISyntaxException {
         URI uri = new URI(line);
         if (!"gemini-lite".equalsIgnoreCase(uri.getScheme())) {
             throw new ProtocolSyntaxException("Unsupported scheme: " + uri.getScheme());
@@ -1,9 +1,25 @@
 package gemini_lite.protocol;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Anything that wants to handle a request must implement handle and return a HandlerResult.
  */
 public interface RequestHandler {
     HandlerResult handle(Request request) throws Exception;
+
+    /**
+     * async version for engines that don't want to hold a thread while a handler waits (e.g. on a retry timer)
+     * by default it just runs handle on the calling thread
+     * @param request the incoming request to handle
+     * @return a future for the result; failures complete it exceptionally
+     */
+    default CompletableFuture<HandlerResult> handleAsync(Request request) {
+        try {
+            return CompletableFuture.completedFuture(handle(request));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 }
 // server uses this: decoupled from specific handlers; more classes could use it.. (˵•̀ᴗ-˵) ✧
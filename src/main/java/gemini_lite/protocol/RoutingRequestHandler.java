@@ -0,0 +1,182 @@
+package gemini_lite.protocol;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Lets one server serve many capsules: dispatches each request by host and longest path prefix to another handler
+ * (files, an archive, the proxy or anything else implementing RequestHandler).
+ * Routes are compiled into a hash map by host and a trie of path segments per host, so dispatching is one hash lookup
+ * plus one step per path segment, however many routes there are. Routes without a host ("*") apply to every host,
+ * and are tried when the host's own routes have no match.
+ * Prefixes match whole segments: "/docs" matches "/docs" and "/docs/a", not "/docsx".
+ */
+public class RoutingRequestHandler implements RequestHandler {
+
+    private record Route(String host, String prefix, RequestHandler handler, boolean strip) { }
+
+    private record Routed(RequestHandler handler, Request request) { }
+
+    /**
+     * One path segment in the trie; handler is set where a route's prefix ends.
+     */
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        RequestHandler handler;
+        boolean strip;
+        int depth; // segments from the root, how much to strip
+    }
+
+    private final List<Route> routes = new ArrayList<>(); // guarded by this, compiled into table
+    private volatile Map<String, Node> table = Map.of(); // host ("*" for any) -> trie, never changed once published
+
+    /**
+     * routes requests for host under prefix to handler, which sees the request unchanged
+     * @param host host name, or "*" (or null) for every host
+     * @param prefix path prefix such as "/" or "/docs"
+     * @param handler handler for the matching requests
+     */
+    public void addRoute(String host, String prefix, RequestHandler handler) {
+        addRoute(host, prefix, handler, false);
+    }
+
+    /**
+     * routes requests for host under prefix to handler
+     * adding the same host and prefix again replaces the earlier route; meant for startup, but safe while requests run
+     * @param host host name, or "*" (or null) for every host
+     * @param prefix path prefix such as "/" or "/docs"
+     * @param handler handler for the matching requests
+     * @param strip whether to cut the prefix off the path before handing the request on, so a capsule can be
+     *              mounted below a prefix ("/docs/a" reaches the handler as "/a")
+     */
+    public synchronized void addRoute(String host, String prefix, RequestHandler handler, boolean strip) {
+        if (handler == null) throw new NullPointerException("handler");
+        if (prefix == null || !prefix.startsWith("/")) throw new IllegalArgumentException("Route prefix must start with /: " + prefix);
+        final String key = (host == null || host.isEmpty()) ? "*" : host.toLowerCase();
+        routes.removeIf(r -> r.host().equals(key) && segments(r.prefix()).equals(segments(prefix)));
+        routes.add(new Route(key, prefix, handler, strip));
+        table = compile(routes);
+    }
+
+    private static Map<String, Node> compile(List<Route> routes) {
+        final Map<String, Node> compiled = new HashMap<>();
+        for (Route route : routes) {
+            Node node = compiled.computeIfAbsent(route.host(), h -> new Node());
+            int depth = 0;
+            for (String segment : segments(route.prefix())) {
+                node = node.children.computeIfAbsent(segment, s -> new Node());
+                node.depth = ++depth;
+            }
+            node.handler = route.handler();
+            node.strip = route.strip();
+        }
+        return compiled;
+    }
+
+    private static List<String> segments(String path) {
+        final List<String> segments = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    @Override
+    public HandlerResult handle(Request request) throws Exception {
+        final Routed routed = route(request);
+        if (routed == null) {
+            return new HandlerResult(Reply.NOT_FOUND_51);
+        }
+        return routed.handler().handle(routed.request());
+    }
+
+    @Override
+    public CompletableFuture<HandlerResult> handleAsync(Request request) {
+        final Routed routed;
+        try {
+            routed = route(request);
+        } catch (URISyntaxException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (routed == null) {
+            return CompletableFuture.completedFuture(new HandlerResult(Reply.NOT_FOUND_51));
+        }
+        return routed.handler().handleAsync(routed.request()); // keep the target's own async behaviour (proxy retries)
+    }
+
+    /**
+     * finds the handler for request and the request to give it
+     * @return the handler and the request, with its prefix cut off if the route says so; null if no route matches
+     */
+    private Routed route(Request request) throws URISyntaxException {
+        final URI uri = request.getURI().normalize(); // "/a/../b" is routed as "/b"
+        final Map<String, Node> current = table;
+        final String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase();
+        final String path = (uri.getRawPath() == null) ? "" : uri.getRawPath();
+        Node match = lookup(current.get(host), path);
+        if (match == null) {
+            match = lookup(current.get("*"), path);
+        }
+        if (match == null) {
+            return null;
+        }
+        if (!match.strip || match.depth == 0) {
+            return new Routed(match.handler, request);
+        }
+        return new Routed(match.handler, new Request(withPath(uri, stripSegments(path, match.depth))));
+    }
+
+    // deepest node with a handler along path, walking one segment at a time
+    private static Node lookup(Node root, String path) {
+        if (root == null) {
+            return null;
+        }
+        Node match = root.handler != null ? root : null;
+        Node node = root;
+        int start = 0;
+        while (start < path.length()) {
+            if (path.charAt(start) == '/') {
+                start++;
+                continue;
+            }
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            node = node.children.get(path.substring(start, end));
+            if (node == null) {
+                break;
+            }
+            if (node.handler != null) {
+                match = node;
+            }
+            start = end;
+        }
+        return match;
+    }
+
+    // path without its first count segments, always starting with "/" ("/docs/a/" minus 1 -> "/a/")
+    private static String stripSegments(String path, int count) {
+        int at = 0;
+        for (int i = 0; i < count; i++) {
+            while (at < path.length() && path.charAt(at) == '/') {
+                at++;
+            }
+            final int end = path.indexOf('/', at);
+            at = (end < 0) ? path.length() : end;
+        }
+        final String rest = path.substring(at);
+        return rest.isEmpty() ? "/" : rest;
+    }
+
+    private static URI withPath(URI uri, String rawPath) throws URISyntaxException {
+        return new URI(uri.getScheme() + "://" + uri.getRawAuthority() + rawPath + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : ""));
+    }
+}
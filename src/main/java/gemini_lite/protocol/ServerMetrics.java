@@ -0,0 +1,326 @@
+package gemini_lite.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, gauges and latency histograms for one Server (or Proxy).
+ * Everything on the request path is a LongAdder or an atomic, so recording never takes a lock;
+ * the numbers are only added up when someone looks (status page, JMX).
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    /**
+     * Where a connection spends its time.
+     * WAIT: accepted (or request read, on the NIO engine) until a thread starts on it
+     * HEADER: reading and parsing the request line
+     * HANDLER: the handler producing a reply
+     * BODY: sending the header and body
+     * TOTAL: accept until the connection is closed
+     */
+    public enum Phase { WAIT, HEADER, HANDLER, BODY, TOTAL }
+
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p99.9" };
+    private static final int MAX_UPSTREAMS = 100; // upstreams with their own latency histogram, the rest share OTHER
+    private static final String OTHER = "other";
+
+    private final long startedAt = System.currentTimeMillis();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder[] timeouts = new LongAdder[Phase.values().length]; // connections closed by a deadline, per phase
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder[] replies = new LongAdder[60]; // index = status code, 10..59 used
+    private final LatencyRecorder[] phases = new LatencyRecorder[Phase.values().length];
+    private final ConcurrentHashMap<String, LatencyRecorder> upstreams = new ConcurrentHashMap<>(); // at most MAX_UPSTREAMS + 1
+    private final LongAdder hedged = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private volatile UpstreamHealth upstreamHealth; // set by a proxy handler, shown next to the upstream latencies
+
+    public ServerMetrics() {
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = new LongAdder();
+        }
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new LatencyRecorder();
+            timeouts[i] = new LongAdder();
+        }
+    }
+
+    // ---- recording, called from the engines and handlers ----
+
+    /** a connection was accepted and waits for a thread */
+    public void connectionQueued() {
+        accepted.increment();
+        queued.incrementAndGet();
+    }
+
+    /** a thread picked the connection up */
+    public void connectionStarted() {
+        queued.decrementAndGet();
+        active.incrementAndGet();
+    }
+
+    /** the connection is closed */
+    public void connectionFinished() {
+        active.decrementAndGet();
+    }
+
+    /** the connection was turned away with 44 because the server is full */
+    public void connectionRejected() {
+        accepted.increment();
+        rejected.increment();
+        replies[44].increment();
+    }
+
+    /** a request was answered with 44 because its client is over the rate limit */
+    public void requestRateLimited() {
+        rateLimited.increment();
+    }
+
+    /** a connection was closed because it passed its deadline for the phase (HEADER, HANDLER or BODY) */
+    public void timedOut(Phase phase) {
+        timeouts[phase.ordinal()].increment();
+    }
+
+    /** a request (NIO engine) waits for a worker thread */
+    public void requestQueued() {
+        queued.incrementAndGet();
+    }
+
+    /** a worker thread picked the request up */
+    public void requestStarted() {
+        queued.decrementAndGet();
+    }
+
+    /** a connection was accepted by the NIO engine, which keeps it open without a thread */
+    public void connectionOpened() {
+        accepted.increment();
+        active.incrementAndGet();
+    }
+
+    public void record(Phase phase, long nanos) {
+        phases[phase.ordinal()].recordNanos(nanos);
+    }
+
+    public void reply(int status) {
+        if (status >= 0 && status < replies.length) {
+            replies[status].increment();
+        }
+    }
+
+    public void bytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * records into the upstream's own histogram, or the shared "other" one once MAX_UPSTREAMS upstreams have theirs
+     * (a proxy's upstreams come from request URIs, there is no telling how many there are)
+     * @param upstream "host:port"
+     * @param nanos time until the upstream's reply header arrived
+     */
+    public void upstreamLatency(String upstream, long nanos) {
+        LatencyRecorder recorder = upstreams.get(upstream);
+        if (recorder == null) {
+            final String key = upstreams.size() >= MAX_UPSTREAMS ? OTHER : upstream;
+            recorder = upstreams.computeIfAbsent(key, u -> new LatencyRecorder());
+        }
+        recorder.recordNanos(nanos);
+    }
+
+    /** the proxy sent a second request because the first one was slow */
+    public void upstreamHedged() {
+        hedged.increment();
+    }
+
+    /** the second request's reply came in first */
+    public void hedgeWon() {
+        hedgeWins.increment();
+    }
+
+    public void setUpstreamHealth(UpstreamHealth upstreamHealth) {
+        this.upstreamHealth = upstreamHealth;
+    }
+
+    // ---- reading ----
+
+    public LatencyRecorder latency(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getRateLimitedRequests() {
+        return rateLimited.sum();
+    }
+
+    @Override
+    public long getHedgedRequests() {
+        return hedged.sum();
+    }
+
+    @Override
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return active.get();
+    }
+
+    @Override
+    public int getQueuedConnections() {
+        return queued.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRepliesByStatus() {
+        Map<String, Long> result = new TreeMap<>();
+        for (int status = 10; status < replies.length; status++) {
+            long n = replies[status].sum();
+            if (n > 0) {
+                result.put(Integer.toString(status), n);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getTimeoutsByPhase() {
+        Map<String, Long> result = new LinkedHashMap<>(); // in phase order
+        for (Phase phase : new Phase[] { Phase.HEADER, Phase.HANDLER, Phase.BODY }) {
+            result.put(phase.name().toLowerCase(), timeouts[phase.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMillis() {
+        Map<String, Double> result = new TreeMap<>();
+        for (Phase phase : Phase.values()) {
+            summarize(phase.name().toLowerCase(), latency(phase), result);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getUpstreamLatencyMillis() {
+        Map<String, Double> result = new TreeMap<>();
+        upstreams.forEach((upstream, recorder) -> summarize(upstream, recorder, result));
+        return result;
+    }
+
+    private static void summarize(String prefix, LatencyRecorder recorder, Map<String, Double> into) {
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            into.put(prefix + "." + PERCENTILE_NAMES[i], recorder.percentileMillis(PERCENTILES[i]));
+        }
+        into.put(prefix + ".max", recorder.maxMillis());
+        into.put(prefix + ".mean", recorder.meanMillis());
+        into.put(prefix + ".count", (double) recorder.count());
+    }
+
+    /**
+     * registers these metrics with the platform MBean server as gemini_lite:type=Server,name=...
+     * @param name what to call this server, e.g. "Server-1958"
+     */
+    public void registerMBean(String name) {
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("gemini_lite:type=Server,name=" + ObjectName.quote(name));
+            if (!mbeans.isRegistered(objectName)) {
+                mbeans.registerMBean(this, objectName);
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param title first heading of the page
+     * @return the status page as text/gemini
+     */
+    public String renderStatusPage(String title) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# ").append(title).append('\n');
+        sb.append("Up for ").append(Duration.ofMillis(System.currentTimeMillis() - startedAt).withNanos(0)
+                .toString().substring(2).toLowerCase()).append('\n');
+
+        sb.append("\n## Connections\n");
+        sb.append("* active: ").append(getActiveConnections()).append('\n');
+        sb.append("* queued: ").append(getQueuedConnections()).append('\n');
+        sb.append("* accepted: ").append(getAcceptedConnections()).append('\n');
+        sb.append("* rejected (44): ").append(getRejectedConnections()).append('\n');
+        sb.append("* rate limited (44): ").append(getRateLimitedRequests()).append('\n');
+        sb.append("* timed out:");
+        getTimeoutsByPhase().forEach((phase, n) -> sb.append(' ').append(phase).append(' ').append(n));
+        sb.append('\n');
+        sb.append("* bytes sent: ").append(getBytesSent()).append('\n');
+
+        sb.append("\n## Replies\n");
+        getRepliesByStatus().forEach((status, n) -> sb.append("* ").append(status).append(": ").append(n).append('\n'));
+
+        sb.append("\n## Latency (ms)\n```\n");
+        header(sb, "phase");
+        for (Phase phase : Phase.values()) {
+            row(sb, phase.name().toLowerCase(), latency(phase));
+        }
+        sb.append("```\n");
+
+        if (!upstreams.isEmpty()) {
+            sb.append("\n## Upstreams (ms to reply header)\n```\n");
+            header(sb, "upstream");
+            new TreeMap<>(upstreams).forEach((upstream, recorder) -> row(sb, upstream, recorder));
+            sb.append("```\n");
+            if (getHedgedRequests() > 0) {
+                sb.append("* hedged: ").append(getHedgedRequests()).append(", won by the hedge: ").append(getHedgeWins()).append('\n');
+            }
+        }
+        UpstreamHealth health = upstreamHealth;
+        if (health != null && !health.snapshot().isEmpty()) {
+            sb.append("\n## Circuit breakers\n");
+            for (UpstreamHealth.Status s : health.snapshot()) {
+                sb.append("* ").append(s.upstream()).append(": ").append(s.state())
+                        .append(", ").append(s.failures()).append('/').append(s.requests()).append(" failed")
+                        .append(", ").append(s.consecutiveFailures()).append(" in a row\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String first) {
+        sb.append(String.format("%-24s %9s %9s %9s %9s %9s %9s%n", first, "count", "p50", "p90", "p99", "p99.9", "max"));
+    }
+
+    private static void row(StringBuilder sb, String name, LatencyRecorder r) {
+        sb.append(String.format("%-24s %9d %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, r.count(),
+                r.percentileMillis(0.5), r.percentileMillis(0.9), r.percentileMillis(0.99), r.percentileMillis(0.999), r.maxMillis()));
+    }
+}
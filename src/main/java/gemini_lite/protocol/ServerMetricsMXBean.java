@@ -0,0 +1,33 @@
+package gemini_lite.protocol;
+
+import java.util.Map;
+
+/**
+ * What ServerMetrics shows over JMX (jconsole, VisualVM, ...).
+ * Latency maps are keyed "phase.p50" etc., values in milliseconds.
+ */
+public interface ServerMetricsMXBean {
+    long getAcceptedConnections();
+
+    long getRejectedConnections();
+
+    long getRateLimitedRequests();
+
+    int getActiveConnections();
+
+    int getQueuedConnections();
+
+    long getBytesSent();
+
+    Map<String, Long> getRepliesByStatus();
+
+    Map<String, Long> getTimeoutsByPhase();
+
+    Map<String, Double> getLatencyMillis();
+
+    Map<String, Double> getUpstreamLatencyMillis();
+
+    long getHedgedRequests();
+
+    long getHedgeWins();
+}
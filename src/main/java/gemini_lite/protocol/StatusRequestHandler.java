@@ -0,0 +1,68 @@
+package gemini_lite.protocol;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Serves the metrics as a text/gemini page at one URI and hands every other request to the wrapped handler.
+ * The status URI is either a path ("/.status", matches on any host, meant for a file server)
+ * or a full URL ("gemini-lite://proxy.local/.status", only that host, so a proxy doesn't hide that path on the internet).
+ */
+public class StatusRequestHandler implements RequestHandler {
+    private final String host; // null -> any host
+    private final String path;
+    private final ServerMetrics metrics;
+    private final String title;
+    private final RequestHandler delegate;
+
+    /**
+     * @param statusUri path or full URL of the status page
+     * @param metrics what to show
+     * @param title heading of the page
+     * @param delegate handler for everything else
+     * @throws IllegalArgumentException if statusUri isn't a usable path or URL
+     */
+    public StatusRequestHandler(String statusUri, ServerMetrics metrics, String title, RequestHandler delegate) {
+        if (metrics == null) throw new NullPointerException("metrics");
+        if (delegate == null) throw new NullPointerException("delegate");
+        try {
+            URI uri = new URI(statusUri);
+            this.host = uri.getHost();
+            this.path = (uri.getPath() == null || uri.getPath().isEmpty()) ? "/" : uri.getPath();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid status page URI: " + statusUri);
+        }
+        this.metrics = metrics;
+        this.title = title;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public HandlerResult handle(Request request) throws Exception {
+        if (isStatusPage(request.getURI())) {
+            return statusPage();
+        }
+        return delegate.handle(request);
+    }
+
+    @Override
+    public CompletableFuture<HandlerResult> handleAsync(Request request) {
+        if (isStatusPage(request.getURI())) {
+            return CompletableFuture.completedFuture(statusPage());
+        }
+        return delegate.handleAsync(request); // keep the delegate's own async behaviour (proxy retries)
+    }
+
+    private boolean isStatusPage(URI uri) {
+        String requested = (uri.getPath() == null || uri.getPath().isEmpty()) ? "/" : uri.getPath();
+        return requested.equals(path) && (host == null || host.equalsIgnoreCase(uri.getHost()));
+    }
+
+    private HandlerResult statusPage() {
+        byte[] page = metrics.renderStatusPage(title).getBytes(StandardCharsets.UTF_8);
+        return new HandlerResult(Reply.TEXT_GEMINI, ByteBuffer.wrap(page));
+    }
+}
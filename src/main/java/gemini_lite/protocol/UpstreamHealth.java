@@ -0,0 +1,186 @@
+package gemini_lite.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-upstream (host:port) health tracking and circuit breaker for the proxy.
+ * After enough consecutive connection failures the circuit opens and requests to that upstream fail fast;
+ * once the cooldown is over a single probe request is let through (half-open) to see if it is back.
+ * Upstreams come from request URIs, so closed upstreams idle for IDLE_MS are swept out and at most maxHosts are
+ * tracked; requests to upstreams beyond that are let through untracked.
+ */
+public class UpstreamHealth {
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    private static final long DEFAULT_OPEN_MS = 10_000L;
+    private static final double LATENCY_WEIGHT = 0.2; // weight of the newest sample in the moving average
+    private static final int DEFAULT_MAX_HOSTS = 10_000;
+    private static final long IDLE_MS = 10 * 60_000L; // a closed upstream unused this long is forgotten
+    private static final long SWEEP_INTERVAL_MS = 10_000;
+    private static final long FULL_SWEEP_INTERVAL_MS = 1_000; // at most once a second when the map is full
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * What monitoring gets to see about one upstream.
+     */
+    public record Status(String upstream, State state, long requests, long failures, int consecutiveFailures, double avgLatencyMs) { }
+
+    private final int failureThreshold;
+    private final long openMs;
+    private final int maxHosts;
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    public UpstreamHealth() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MS);
+    }
+
+    public UpstreamHealth(int failureThreshold, long openMs) {
+        this(failureThreshold, openMs, DEFAULT_MAX_HOSTS);
+    }
+
+    /**
+     * @param failureThreshold consecutive failures that open the circuit
+     * @param openMs how long an open circuit fails fast before a probe is allowed
+     * @param maxHosts upstreams tracked at most
+     */
+    public UpstreamHealth(int failureThreshold, long openMs, int maxHosts) {
+        if (failureThreshold < 1) throw new IllegalArgumentException("failureThreshold must be at least 1");
+        if (maxHosts < 1) throw new IllegalArgumentException("maxHosts must be at least 1");
+        this.failureThreshold = failureThreshold;
+        this.openMs = openMs;
+        this.maxHosts = maxHosts;
+    }
+
+    /**
+     * asks whether a request to upstream may go out right now
+     * @param upstream "host:port"
+     * @return false if the circuit is open (or a probe is already running), so the caller should fail fast
+     */
+    public boolean allowRequest(String upstream) {
+        return host(upstream).allow(System.currentTimeMillis());
+    }
+
+    /**
+     * records a request that got a reply header back
+     * @param upstream "host:port"
+     * @param latencyMs time from connect to reply header
+     */
+    public void recordSuccess(String upstream, long latencyMs) {
+        host(upstream).success(latencyMs);
+    }
+
+    /**
+     * records a request that failed to connect or to read a reply
+     * @param upstream "host:port"
+     */
+    public void recordFailure(String upstream) {
+        host(upstream).failure(System.currentTimeMillis());
+    }
+
+    /**
+     * @return the current state of every upstream seen so far
+     */
+    public List<Status> snapshot() {
+        List<Status> result = new ArrayList<>();
+        hosts.values().forEach(host -> result.add(host.status()));
+        return result;
+    }
+
+    // the upstream's tracker; a throwaway one (always closed) if the map is full of other upstreams
+    private Host host(String upstream) {
+        final long now = System.currentTimeMillis();
+        sweepIfDue(now);
+        Host host = hosts.get(upstream);
+        if (host == null) {
+            host = hosts.size() >= maxHosts ? new Host(upstream) : hosts.computeIfAbsent(upstream, Host::new);
+        }
+        host.lastUsed = now;
+        return host;
+    }
+
+    // one thread at a time drops closed upstreams nobody has used for IDLE_MS; open ones stay so they keep failing fast
+    private void sweepIfDue(long now) {
+        final long last = lastSweep.get();
+        final long due = hosts.size() >= maxHosts ? FULL_SWEEP_INTERVAL_MS : SWEEP_INTERVAL_MS;
+        if (now - last < due || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        hosts.values().removeIf(host -> host.idle(now));
+    }
+
+    /**
+     * Counters and breaker state for one upstream, guarded by its own monitor.
+     */
+    private final class Host {
+        private final String name;
+        private State state = State.CLOSED;
+        private long openedAt;
+        private boolean probeInFlight = false;
+        private long requests;
+        private long failures;
+        private int consecutiveFailures;
+        private double avgLatencyMs = -1; // -1 until the first sample
+        private volatile long lastUsed;
+
+        Host(String name) {
+            this.name = name;
+        }
+
+        synchronized boolean allow(long now) {
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (now - openedAt < openMs) {
+                        return false;
+                    }
+                    state = State.HALF_OPEN; // cooldown over: let one probe through
+                    probeInFlight = true;
+                    return true;
+                default: // HALF_OPEN: only the one probe
+                    if (probeInFlight) {
+                        return false;
+                    }
+                    probeInFlight = true;
+                    return true;
+            }
+        }
+
+        synchronized void success(long latencyMs) {
+            requests++;
+            consecutiveFailures = 0;
+            avgLatencyMs = (avgLatencyMs < 0) ? latencyMs : avgLatencyMs + LATENCY_WEIGHT * (latencyMs - avgLatencyMs);
+            if (state != State.CLOSED) {
+                System.err.println("Upstream " + name + " is back, closing circuit");
+                state = State.CLOSED;
+                probeInFlight = false;
+            }
+        }
+
+        synchronized void failure(long now) {
+            requests++;
+            failures++;
+            consecutiveFailures++;
+            if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+                if (state != State.OPEN) {
+                    System.err.println("Upstream " + name + " failed " + consecutiveFailures + " times in a row, opening circuit");
+                }
+                state = State.OPEN;
+                openedAt = now;
+                probeInFlight = false;
+            }
+        }
+
+        synchronized boolean idle(long now) {
+            return state == State.CLOSED && now - lastUsed >= IDLE_MS;
+        }
+
+        synchronized Status status() {
+            return new Status(name, state, requests, failures, consecutiveFailures, Math.max(0, avgLatencyMs));
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package gemini_lite.protocol;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import gemini_lite.engine.ClientEngine;
+import gemini_lite.engine.Response;
+
+/**
+ * A fixed set of backend Servers behind the proxy, all serving the same capsule.
+ * Each request goes to a backend picked by consistent hashing on its URI, so every backend sees (and caches) its own
+ * share of the paths. Each backend owns weight * VIRTUAL_NODES points on the hash ring, which evens out the shares and
+ * lets bigger machines take more.
+ * A backend that fails its health checks (or FALL requests in a row) is skipped: only its keys move, to the next
+ * backends on the ring, and they move back when it recovers. Everyone else's keys stay where they are.
+ */
+public class UpstreamPool {
+    private static final int VIRTUAL_NODES = 100; // ring points per unit of weight
+    private static final int FALL = 2; // failures in a row that take a backend out
+
+    /**
+     * One backend. Healthy until it fails FALL times in a row, healthy again after one success.
+     */
+    public static final class Node {
+        private final String host;
+        private final int port;
+        private final int weight;
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile boolean up = true;
+
+        Node(String host, int port, int weight) {
+            this.host = host;
+            this.port = port;
+            this.weight = weight;
+        }
+
+        public String host() {
+            return host;
+        }
+
+        public int port() {
+            return port;
+        }
+
+        public boolean isUp() {
+            return up;
+        }
+
+        @Override
+        public String toString() {
+            return (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+        }
+    }
+
+    private final Node[] nodes;
+    private final long[] ring; // sorted ring points
+    private final int[] owners; // owners[i] = index into nodes of ring[i]
+
+    /**
+     * @param backends "host:port" or "host:port*weight" per backend (weight 1 by default)
+     * @throws IllegalArgumentException if there are none or one can't be parsed
+     */
+    public UpstreamPool(List<String> backends) {
+        if (backends.isEmpty()) throw new IllegalArgumentException("No backends");
+        nodes = new Node[backends.size()];
+        int points = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = parse(backends.get(i).trim());
+            points += nodes[i].weight * VIRTUAL_NODES;
+        }
+        final long[][] entries = new long[points][];
+        int at = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            for (int v = 0; v < nodes[i].weight * VIRTUAL_NODES; v++) {
+                entries[at++] = new long[] { hash(nodes[i] + "#" + v), i };
+            }
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+        ring = new long[points];
+        owners = new int[points];
+        for (int i = 0; i < points; i++) {
+            ring[i] = entries[i][0];
+            owners[i] = (int) entries[i][1];
+        }
+    }
+
+    private static Node parse(String backend) {
+        try {
+            int weight = 1;
+            final int star = backend.lastIndexOf('*');
+            if (star >= 0) {
+                weight = Integer.parseInt(backend.substring(star + 1));
+                backend = backend.substring(0, star);
+            }
+            final int colon = backend.lastIndexOf(':');
+            final String host = backend.substring(0, colon);
+            final int port = Integer.parseInt(backend.substring(colon + 1));
+            if (host.isEmpty() || weight < 1 || port < 1 || port > 65535) {
+                throw new IllegalArgumentException();
+            }
+            return new Node(host.startsWith("[") ? host.substring(1, host.length() - 1) : host, port, weight);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid backend (expected host:port or host:port*weight): " + backend);
+        }
+    }
+
+    /**
+     * @param key what to hash, the request URI
+     * @return the backend owning key: the first healthy one clockwise from its hash; null if none is healthy
+     */
+    public Node pick(String key) {
+        return pick(key, node -> true);
+    }
+
+    /**
+     * like pick(key), but also skips the backends usable turns down (e.g. an open circuit breaker), so their keys
+     * go to the next backends on the ring too
+     * @param usable asked about healthy backends in ring order until it accepts one, at most once per backend
+     * @return the first healthy backend clockwise from key's hash that usable accepts; null if there is none
+     */
+    public Node pick(String key, Predicate<Node> usable) {
+        int i = Arrays.binarySearch(ring, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        boolean[] refused = null; // backends usable turned down, not asked again at their other ring points
+        for (int n = 0; n < ring.length; n++) {
+            final int owner = owners[(i + n) % ring.length];
+            final Node node = nodes[owner];
+            if (!node.up || (refused != null && refused[owner])) {
+                continue;
+            }
+            if (usable.test(node)) {
+                return node;
+            }
+            if (refused == null) {
+                refused = new boolean[nodes.length];
+            }
+            refused[owner] = true;
+        }
+        return null;
+    }
+
+    /**
+     * @return every backend, for monitoring
+     */
+    public List<Node> nodes() {
+        return List.of(nodes);
+    }
+
+    /** a request or health check got a reply from node */
+    public void success(Node node) {
+        node.failures.set(0);
+        if (!node.up) {
+            node.up = true;
+            System.err.println("Backend " + node + " is back");
+        }
+    }
+
+    /** a request or health check to node failed (couldn't connect, timed out) */
+    public void failure(Node node) {
+        if (node.failures.incrementAndGet() >= FALL && node.up) {
+            node.up = false;
+            System.err.println("Backend " + node + " is down, its keys go to the next backends on the ring");
+        }
+    }
+
+    /**
+     * requests "/" from every backend every intervalMs on a daemon thread; any reply header counts as healthy
+     * @param engine engine for the checks
+     * @param intervalMs time between rounds, also how long a check may take
+     */
+    public void startHealthChecks(ClientEngine engine, long intervalMs) {
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "backend-health");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(() -> {
+            for (Node node : nodes) {
+                final CompletableFuture<Response> check = engine.fetch(URI.create("gemini-lite://" + node + "/"), node.host, node.port);
+                check.whenComplete((response, error) -> {
+                    if (error != null) {
+                        failure(node);
+                    } else {
+                        response.close();
+                        success(node);
+                    }
+                });
+                timer.schedule(() -> check.cancel(false), intervalMs, TimeUnit.MILLISECONDS); // too slow counts as failed, and closes the connection
+            }
+        }, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    // FNV-1a, then the murmur3 finalizer so nearby strings ("a#1", "a#2") land far apart on the ring
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return summary for logs, e.g. "127.0.0.1:2001 (weight 2), 127.0.0.1:2002 (weight 1)"
+     */
+    @Override
+    public String toString() {
+        final List<String> parts = new ArrayList<>();
+        for (Node node : nodes) {
+            parts.add(node + " (weight " + node.weight + (node.up ? "" : ", down") + ")");
+        }
+        return String.join(", ", parts);
+    }
+}
@@ -1,10 +1,10 @@
 package gemini_lite.protocol;
 
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Reads a single CRLF-terminated header line and enforces syntax rules •`ヮ´•
@@ -12,50 +12,75 @@ import java.nio.charset.StandardCharsets;
 public class Wire {
     public static final String CRLF = "\r\n";
     static final int MAX_HEADER_LINE = 1024;
+    // the first three bytes are <STATUS><SPACE> aka 2 and 1 -> they don't count towards MAX_HEADER_LINE
+    public static final int MAX_LINE_BYTES = MAX_HEADER_LINE + 3;
 
     /**
      * reads a single header line terminated by CRLF from the input stream
      * enforces that CR must always be followed by LF (no bare LF) and a max header length
+     * if the stream is a WireInputStream the line is scanned straight out of its buffer,
+     * otherwise we fall back to reading byte by byte so nothing past the CRLF is consumed
      * @param in Input stream positioned at the start of a header line.
      * @return The header line as a UTF-8 string, without the trailing CRLF.
      */
     public static String readHeaderLine(InputStream in) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int prev = -1;
+        if (in instanceof WireInputStream wire) {
+            return wire.readHeaderLine();
+        }
+
+        byte[] buffer = new byte[128];
+        int pos = 0; // number of bytes in the buffer
         int current;
-        
+
         while ((current = in.read()) != -1) {
-            // check for LF without CR
-            if (current == '\n' && prev != '\r') {
-                throw new ProtocolSyntaxException("LF without CR");
+            if (current == '\n') {
+                if (pos == 0 || buffer[pos - 1] != '\r') { // check for LF without CR
+                    throw new ProtocolSyntaxException("LF without CR");
+                }
+                return new String(buffer, 0, pos - 1, StandardCharsets.UTF_8); // drop the CR, the LF was never stored
             }
-
-            int pos = buffer.size(); // number of bytes in the buffer
             // check maximum header length (not counting the final CRLF)
-            if (current != '\n' && current != '\r') {
-                if (pos >= 3) { // the first three bytes are <STATUS><SPACE> aka 2 and 1 -> so we check the length right after 3rd byte
-                    int metaLen = pos - 3;
-                    if (metaLen >= MAX_HEADER_LINE) {
-                        throw new ProtocolSyntaxException("Header line too long");
-                    }
-                }
+            if (tooLong(pos, current)) {
+                throw new ProtocolSyntaxException("Header line too long");
             }
-            // add byte to buffer
-            buffer.write(current);
-            
-            // check for CRLF sequence
-            if (prev == '\r' && current == '\n') {
-                // found end of header line
-                byte[] bytes = buffer.toByteArray();
-                // remove CRLF (last 2 bytes)
-                byte[] lineBytes = new byte[bytes.length - 2];
-                System.arraycopy(bytes, 0, lineBytes, 0, bytes.length - 2);
-                return new String(lineBytes, StandardCharsets.UTF_8);
+            if (pos == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
             }
-            prev = current;
+            buffer[pos++] = (byte) current;
         }
-        
+
         // if we get here, we hit EOF before finding CRLF
         throw new EOFException("EOF before CRLF");
     }
+
+    /**
+     * scans buf[from, to) for the LF that ends a header line starting at from
+     * applies the same LF-without-CR and max length rules as readHeaderLine
+     * @param buf bytes received so far
+     * @param from index of the first byte of the header line
+     * @param to index one past the last received byte
+     * @return index of the terminating LF, or -1 if more bytes are needed
+     * @throws ProtocolSyntaxException on a bare LF or an over-long line
+     */
+    public static int findLineEnd(byte[] buf, int from, int to) throws ProtocolSyntaxException {
+        for (int i = from; i < to; i++) {
+            byte b = buf[i];
+            if (b == '\n') {
+                if (i == from || buf[i - 1] != '\r') {
+                    throw new ProtocolSyntaxException("LF without CR");
+                }
+                return i;
+            }
+            if (tooLong(i - from, b)) {
+                throw new ProtocolSyntaxException("Header line too long");
+            }
+        }
+        return -1;
+    }
+
+    // whether byte b at offset length into a line makes it too long: only the CR of the CRLF may follow a
+    // max-length line, so a stream of CRs without LF is cut off like any other over-long line
+    private static boolean tooLong(int length, int b) {
+        return length > MAX_LINE_BYTES || (length == MAX_LINE_BYTES && b != '\r');
+    }
 }
@@ -0,0 +1,109 @@
+package gemini_lite.protocol;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Per-connection buffered stream that reads header lines in bulk instead of one byte per syscall.
+ * Whatever was read past the CRLF stays in the buffer and is handed out first by read(),
+ * so the body consumer sees exactly the bytes that followed the header.
+ */
+public class WireInputStream extends FilterInputStream {
+    private static final int BUFFER_SIZE = 8192; // comfortably larger than a max-length header line
+
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;   // next unread byte in buf
+    private int limit = 0; // one past the last valid byte in buf
+
+    public WireInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * reads one CRLF-terminated header line, scanning the buffer for the terminator
+     * and decoding the line directly from it (no intermediate copies)
+     * @return The header line as a UTF-8 string, without the trailing CRLF.
+     * @throws ProtocolSyntaxException on a bare LF or an over-long line
+     * @throws EOFException if the stream ends before CRLF
+     */
+    public String readHeaderLine() throws IOException {
+        while (true) {
+            int lf = Wire.findLineEnd(buf, pos, limit);
+            if (lf != -1) {
+                String line = new String(buf, pos, lf - 1 - pos, StandardCharsets.UTF_8); // skip the CR before the LF
+                pos = lf + 1;
+                return line;
+            }
+            if (!fill()) {
+                throw new EOFException("EOF before CRLF");
+            }
+        }
+    }
+
+    /**
+     * compacts the buffer and reads more bytes from the underlying stream
+     * @return false if the underlying stream hit EOF
+     * @throws ProtocolSyntaxException if the buffer is full without a line end (reading 0 bytes would spin forever)
+     */
+    private boolean fill() throws IOException {
+        if (pos > 0) { // move the unread part to the front so a whole line always fits
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) { // full buffer without a line end means the line is too long
+            throw new ProtocolSyntaxException("Header line too long");
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n == -1) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos < limit) {
+            return buf[pos++] & 0xff;
+        }
+        return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos < limit) { // hand out leftover body bytes first
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        return in.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (pos < limit) {
+            int skipped = (int) Math.min(n, limit - pos);
+            pos += skipped;
+            return skipped;
+        }
+        return in.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - pos) + in.available();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -0,0 +1,54 @@
+package gemini_lite;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BatchClientTest {
+
+    private static String path(String uri) {
+        return BatchClient.relativePath(URI.create(uri));
+    }
+
+    @Test
+    void directoriesAndExtensionlessPathsGetAnIndex() {
+        assertEquals("h/index.gmi", path("gemini-lite://h"));
+        assertEquals("h/index.gmi", path("gemini-lite://h/"));
+        assertEquals("h/docs/index.gmi", path("gemini-lite://h/docs"));
+        assertEquals("h/docs/index.gmi", path("gemini-lite://h/docs/"));
+        assertEquals("h/docs/x.gmi", path("gemini-lite://h/docs/x.gmi"));
+        assertEquals("h_1965/a.txt_k_1", path("gemini-lite://h:1965/a.txt?k=1"));
+        assertEquals("h/etc/passwd/index.gmi", path("gemini-lite://h/../etc/passwd"));
+    }
+
+    @Test
+    void dottedDirectoriesDontCollideWithFiles() {
+        assertEquals("h/v1.2", path("gemini-lite://h/v1.2"));
+        assertEquals("h/v1.2+/x.gmi", path("gemini-lite://h/v1.2/x.gmi"));
+    }
+
+    @Test
+    void directorySinkTakesAFileAndItsSubdirectoryInEitherOrder(@TempDir Path out) throws Exception {
+        BatchClient.DirectorySink sink = new BatchClient.DirectorySink(out);
+        sink.write(URI.create("gemini-lite://h/docs"), body("docs"));
+        sink.write(URI.create("gemini-lite://h/docs/x.gmi"), body("x"));
+        sink.write(URI.create("gemini-lite://h/a/b.gmi"), body("b"));
+        sink.write(URI.create("gemini-lite://h/a"), body("a"));
+        sink.write(URI.create("gemini-lite://h/a/"), body("again")); // same file as /a, kept once
+        assertEquals("docs", Files.readString(out.resolve("h/docs/index.gmi")));
+        assertEquals("x", Files.readString(out.resolve("h/docs/x.gmi")));
+        assertEquals("b", Files.readString(out.resolve("h/a/b.gmi")));
+        assertEquals("a", Files.readString(out.resolve("h/a/index.gmi")));
+    }
+
+    private static ByteArrayInputStream body(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
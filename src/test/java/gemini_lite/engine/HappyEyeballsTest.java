@@ -0,0 +1,95 @@
+package gemini_lite.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * ClientEngine connecting to a name with several addresses, some of which refuse: a listener bound to 127.0.0.1
+ * only, so 127.0.0.2 (also loopback on Linux) refuses the same port.
+ */
+class HappyEyeballsTest {
+
+    private ServerSocket listener;
+    private Thread acceptor;
+
+    @BeforeEach
+    void listen() throws IOException {
+        listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        acceptor = new Thread(() -> {
+            while (!listener.isClosed()) {
+                try (Socket socket = listener.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    in.readLine();
+                    OutputStream out = socket.getOutputStream();
+                    out.write("20 text/plain\r\nhi".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                } catch (IOException e) {
+                    // closed by stop(), or a client gave up
+                }
+            }
+        }, "happy-eyeballs-test");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        listener.close();
+        acceptor.join(1000);
+    }
+
+    private ClientEngine engine(String... addresses) {
+        ClientEngine engine = new ClientEngine();
+        engine.setResolver(new HostResolver(host -> {
+            InetAddress[] resolved = new InetAddress[addresses.length];
+            for (int i = 0; i < addresses.length; i++) {
+                resolved[i] = InetAddress.getByName(addresses[i]);
+            }
+            return resolved;
+        }, 10_000, 1_000, 100));
+        engine.setTimeouts(2000, 2000);
+        return engine;
+    }
+
+    private URI uri() {
+        return URI.create("gemini-lite://multi.test:" + listener.getLocalPort() + "/");
+    }
+
+    @Test
+    void fallsBackToTheAddressThatListens() throws Exception {
+        try (Response response = engine("127.0.0.2", "127.0.0.1").fetch(uri()).get(5, TimeUnit.SECONDS)) {
+            assertEquals(20, response.getReply().getStatus());
+            assertEquals("hi", new String(response.getBody().readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void usesTheFirstAddressWhenItListens() throws Exception {
+        try (Response response = engine("127.0.0.1", "127.0.0.2").fetch(uri()).get(5, TimeUnit.SECONDS)) {
+            assertEquals(20, response.getReply().getStatus());
+        }
+    }
+
+    @Test
+    void failsWhenEveryAddressRefuses() {
+        assertThrows(ExecutionException.class, () -> engine("127.0.0.2", "127.0.0.3").fetch(uri()).get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,94 @@
+package gemini_lite.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class HostResolverTest {
+
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    // stub lookup: "a.test" and friends resolve to 127.0.0.1, anything else is unknown
+    private InetAddress[] lookup(String host) throws UnknownHostException {
+        lookups.incrementAndGet();
+        if (!host.endsWith(".test")) {
+            throw new UnknownHostException(host);
+        }
+        return new InetAddress[] { InetAddress.getByName("127.0.0.1") };
+    }
+
+    @Test
+    void reusesAddressesUntilTheTtlRunsOut() throws Exception {
+        HostResolver resolver = new HostResolver(this::lookup, 200, 100, 100);
+        assertEquals(List.of(InetAddress.getByName("127.0.0.1")), resolver.resolve("a.test").get());
+        resolver.resolve("A.TEST").get();
+        assertEquals(1, lookups.get());
+        Thread.sleep(300);
+        resolver.resolve("a.test").get();
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    void remembersFailuresForTheNegativeTtl() throws Exception {
+        HostResolver resolver = new HostResolver(this::lookup, 10_000, 200, 100);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> resolver.resolve("unknown.invalid").get());
+        assertInstanceOf(UnknownHostException.class, e.getCause());
+        assertThrows(ExecutionException.class, () -> resolver.resolve("unknown.invalid").get());
+        assertEquals(1, lookups.get());
+        Thread.sleep(300);
+        assertThrows(ExecutionException.class, () -> resolver.resolve("unknown.invalid").get());
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    void concurrentRequestsShareOneLookup() throws Exception {
+        HostResolver resolver = new HostResolver(host -> {
+            try {
+                Thread.sleep(50); // long enough for every request to find the lookup in flight
+            } catch (InterruptedException e) {
+                throw new UnknownHostException(host);
+            }
+            return lookup(host);
+        }, 10_000, 1_000, 100);
+        List<CompletableFuture<List<InetAddress>>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(resolver.resolve("a.test"));
+        }
+        for (CompletableFuture<List<InetAddress>> future : futures) {
+            future.get();
+        }
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    void cachesNoMoreThanMaxEntries() throws Exception {
+        HostResolver resolver = new HostResolver(this::lookup, 10_000, 1_000, 2);
+        for (String host : new String[] { "a.test", "b.test", "c.test", "d.test" }) {
+            assertEquals(1, resolver.resolve(host).get().size());
+        }
+        assertEquals(2, resolver.size());
+        resolver.resolve("c.test").get(); // not cached, looked up again
+        assertEquals(5, lookups.get());
+    }
+
+    @Test
+    void alternatesAddressFamilies() throws Exception {
+        InetAddress v6a = InetAddress.getByName("::1");
+        InetAddress v6b = InetAddress.getByName("fe80::1");
+        InetAddress v4a = InetAddress.getByName("127.0.0.1");
+        InetAddress v4b = InetAddress.getByName("127.0.0.2");
+        assertEquals(List.of(v6a, v4a, v6b, v4b), HostResolver.order(new InetAddress[] { v6a, v6b, v4a, v4b }));
+        assertTrue(HostResolver.order(new InetAddress[0]).isEmpty());
+    }
+}
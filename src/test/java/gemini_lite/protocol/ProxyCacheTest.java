@@ -0,0 +1,113 @@
+package gemini_lite.protocol;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class ProxyCacheTest {
+
+    private static final int MAX_BYTES = 64 * 1024; // so 8 KB per entry
+    private static final int BODY = 6 * 1024;
+
+    /**
+     * An upstream body: all its bytes at once, then nothing until released.
+     */
+    private static final class StalledBody extends InputStream {
+        private final byte[] bytes;
+        private final CountDownLatch release;
+        private boolean sent = false;
+
+        StalledBody(byte fill, CountDownLatch release) {
+            this.bytes = new byte[BODY];
+            Arrays.fill(bytes, fill);
+            this.release = release;
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!sent) {
+                sent = true;
+                System.arraycopy(bytes, 0, b, off, BODY);
+                return BODY;
+            }
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return -1;
+        }
+    }
+
+    @Test
+    void inFlightDownloadsCountTowardTheLimit() throws Exception {
+        ProxyCache cache = new ProxyCache(MAX_BYTES, 60_000);
+        CountDownLatch release = new CountDownLatch(1);
+        List<CompletableFuture<HandlerResult>> results = new ArrayList<>();
+        for (int i = 0; i < 20; i++) { // 120 KB of distinct misses at once
+            final byte fill = (byte) i;
+            results.add(cache.get("gemini-lite://host/" + i, () -> CompletableFuture.completedFuture(
+                    new HandlerResult(Reply.OCTET_STREAM, new StalledBody(fill, release)))));
+        }
+        List<InputStream> bodies = new ArrayList<>();
+        for (CompletableFuture<HandlerResult> result : results) {
+            InputStream body = result.get(5, TimeUnit.SECONDS).getBody();
+            assertEquals(BODY, body.readNBytes(BODY).length); // every download got its first bytes in
+            bodies.add(body);
+        }
+        assertTrue(cache.getUsedBytes() + cache.getInFlightBytes() <= MAX_BYTES, "in flight: " + cache.getInFlightBytes());
+
+        release.countDown();
+        for (InputStream body : bodies) {
+            assertEquals(-1, body.read()); // the ones that weren't kept are still delivered in full
+        }
+        for (int i = 0; i < 100 && cache.getInFlightBytes() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, cache.getInFlightBytes());
+        assertTrue(cache.getUsedBytes() <= MAX_BYTES);
+        assertEquals(cache.getUsedBytes(), (long) cache.size() * BODY);
+    }
+
+    @Test
+    void concurrentMissesShareOneFetch() throws Exception {
+        ProxyCache cache = new ProxyCache(MAX_BYTES, 60_000);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<HandlerResult> pending = new CompletableFuture<>();
+        int[] loads = { 0 };
+        List<CompletableFuture<HandlerResult>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            results.add(cache.get("gemini-lite://host/same", () -> {
+                loads[0]++;
+                return pending;
+            }));
+        }
+        assertTrue(results.stream().noneMatch(CompletableFuture::isDone), "nobody waits on a thread, nobody is done yet");
+        pending.complete(new HandlerResult(Reply.OCTET_STREAM, new StalledBody((byte) 7, release)));
+        release.countDown();
+        byte[] expected = new byte[BODY];
+        Arrays.fill(expected, (byte) 7);
+        for (CompletableFuture<HandlerResult> result : results) {
+            try (InputStream body = result.get(5, TimeUnit.SECONDS).getBody()) {
+                assertArrayEquals(expected, body.readAllBytes());
+            }
+        }
+        assertEquals(1, loads[0]);
+    }
+}
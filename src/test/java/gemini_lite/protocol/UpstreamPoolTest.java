@@ -0,0 +1,208 @@
+package gemini_lite.protocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import gemini_lite.Server;
+import gemini_lite.engine.ClientEngine;
+import gemini_lite.engine.Response;
+
+/**
+ * Consistent hashing over a pool of loopback Servers, each serving a capsule whose who.txt names the backend,
+ * reached through a proxy Server the way Proxy runs with GEMINI_LITE_BACKENDS.
+ */
+class UpstreamPoolTest {
+
+    private static final int KEYS = 300;
+
+    @TempDir
+    Path capsules;
+
+    @Test
+    void sameKeySameBackend() {
+        UpstreamPool pool = new UpstreamPool(List.of("127.0.0.1:2001", "127.0.0.1:2002", "127.0.0.1:2003"));
+        UpstreamPool again = new UpstreamPool(List.of("127.0.0.1:2001", "127.0.0.1:2002", "127.0.0.1:2003"));
+        for (int i = 0; i < KEYS; i++) {
+            String key = key(i).toString();
+            assertEquals(pool.pick(key).toString(), pool.pick(key).toString());
+            assertEquals(pool.pick(key).toString(), again.pick(key).toString());
+        }
+    }
+
+    @Test
+    void sharesFollowTheWeights() {
+        UpstreamPool pool = new UpstreamPool(List.of("127.0.0.1:2001*2", "127.0.0.1:2002", "127.0.0.1:2003"));
+        Map<String, Integer> shares = new HashMap<>();
+        for (int i = 0; i < 4000; i++) {
+            shares.merge(pool.pick(key(i).toString()).toString(), 1, Integer::sum);
+        }
+        assertShare(shares.get("127.0.0.1:2001"), 2000);
+        assertShare(shares.get("127.0.0.1:2002"), 1000);
+        assertShare(shares.get("127.0.0.1:2003"), 1000);
+    }
+
+    @Test
+    void onlyTheDownBackendsKeysMove() {
+        UpstreamPool pool = new UpstreamPool(List.of("127.0.0.1:2001", "127.0.0.1:2002", "127.0.0.1:2003"));
+        Map<String, String> before = picks(pool);
+        UpstreamPool.Node down = pool.nodes().get(1);
+        pool.failure(down);
+        assertTrue(down.isUp(), "one failure is not enough");
+        pool.failure(down);
+        assertFalse(down.isUp());
+        Map<String, String> after = picks(pool);
+        for (String key : before.keySet()) {
+            if (before.get(key).equals(down.toString())) {
+                assertNotEquals(down.toString(), after.get(key));
+            } else {
+                assertEquals(before.get(key), after.get(key), key);
+            }
+        }
+        pool.success(down);
+        assertEquals(before, picks(pool));
+    }
+
+    @Test
+    void keysOfAnOpenCircuitFailOverToo() {
+        UpstreamPool pool = new UpstreamPool(List.of("127.0.0.1:2001", "127.0.0.1:2002", "127.0.0.1:2003"));
+        UpstreamHealth health = new UpstreamHealth(5, 10_000);
+        UpstreamPool.Node tripped = pool.nodes().get(0);
+        for (int i = 0; i < 5; i++) {
+            health.recordFailure(tripped.toString());
+        }
+        pool.success(tripped); // a health check got through: up for the pool, but its circuit is still open
+        assertTrue(tripped.isUp());
+        Map<String, String> before = picks(pool);
+        for (int i = 0; i < KEYS; i++) {
+            String key = key(i).toString();
+            UpstreamPool.Node node = pool.pick(key, n -> health.allowRequest(n.toString()));
+            assertNotEquals(tripped, node);
+            if (!before.get(key).equals(tripped.toString())) {
+                assertEquals(before.get(key), node.toString(), key);
+            }
+        }
+    }
+
+    @Test
+    void servesThroughTheProxyAndFailsOver() throws Exception {
+        int a = freePort();
+        int b = freePort();
+        int c = freePort(); // not started until later: fails its health checks first
+        start(new Server(a, capsule("a")), a);
+        start(new Server(b, capsule("b")), b);
+        UpstreamPool pool = new UpstreamPool(List.of("127.0.0.1:" + a, "127.0.0.1:" + b, "127.0.0.1:" + c));
+        String nodeC = pool.nodes().get(2).toString();
+        Map<String, String> owners = picks(new UpstreamPool(List.of("127.0.0.1:" + a, "127.0.0.1:" + b, "127.0.0.1:" + c)));
+        Map<String, String> names = Map.of("127.0.0.1:" + a, "a", "127.0.0.1:" + b, "b", nodeC, "c");
+
+        ClientEngine engine = new ClientEngine();
+        ProxyRequestHandler handler = new ProxyRequestHandler(engine);
+        handler.setPool(pool);
+        pool.startHealthChecks(engine, 100);
+        int proxyPort = freePort();
+        start(new Server(proxyPort, handler), proxyPort);
+        ClientEngine client = new ClientEngine();
+        client.setProxy("127.0.0.1", proxyPort);
+
+        await(() -> !pool.nodes().get(2).isUp());
+        for (int i = 0; i < KEYS; i++) {
+            String owner = owners.get(key(i).toString());
+            String served = fetch(client, key(i));
+            if (owner.equals(nodeC)) {
+                assertTrue(served.equals("a") || served.equals("b"), "c's key went to " + served);
+            } else {
+                assertEquals(names.get(owner), served, "key " + i + " moved although its backend is up");
+                assertEquals(served, fetch(client, key(i)));
+            }
+        }
+
+        start(new Server(c, capsule("c")), c);
+        await(() -> pool.nodes().get(2).isUp());
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(names.get(owners.get(key(i).toString())), fetch(client, key(i)), "key " + i);
+        }
+    }
+
+    private static URI key(int i) {
+        return URI.create("gemini-lite://capsule.test/who.txt?k=" + i);
+    }
+
+    private static Map<String, String> picks(UpstreamPool pool) {
+        Map<String, String> picks = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            picks.put(key(i).toString(), pool.pick(key(i).toString()).toString());
+        }
+        return picks;
+    }
+
+    // within 20% of the expected count
+    private static void assertShare(Integer actual, int expected) {
+        assertTrue(actual != null && Math.abs(actual - expected) <= expected / 5, "expected about " + expected + ", got " + actual);
+    }
+
+    private FileSystemRequestHandler capsule(String name) throws IOException {
+        Path root = Files.createDirectories(capsules.resolve(name));
+        Files.writeString(root.resolve("who.txt"), name);
+        return new FileSystemRequestHandler(root.toString());
+    }
+
+    private static String fetch(ClientEngine client, URI uri) throws Exception {
+        try (Response response = client.fetch(uri).get(5, TimeUnit.SECONDS)) {
+            assertEquals(20, response.getReply().getStatus(), response.getReply().getMessage());
+            return new String(response.getBody().readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.getAsBoolean(), "timed out");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // runs server on a daemon thread and waits until it accepts
+    private static void start(Server server, int port) throws Exception {
+        Thread t = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "test-server-" + port);
+        t.setDaemon(true);
+        t.start();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (IOException notYet) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("Server on port " + port + " did not start");
+    }
+}
@@ -0,0 +1,53 @@
+package gemini_lite.protocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+class WireTest {
+
+    private static InputStream plain(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static InputStream buffered(String s) {
+        return new WireInputStream(plain(s));
+    }
+
+    @Test
+    void readsAMaxLengthLine() throws Exception {
+        String line = "x".repeat(Wire.MAX_LINE_BYTES);
+        assertEquals(line, Wire.readHeaderLine(plain(line + "\r\nbody")));
+        assertEquals(line, Wire.readHeaderLine(buffered(line + "\r\nbody")));
+    }
+
+    @Test
+    void rejectsALongerLine() {
+        String line = "x".repeat(Wire.MAX_LINE_BYTES + 1) + "\r\n";
+        assertThrows(ProtocolSyntaxException.class, () -> Wire.readHeaderLine(plain(line)));
+        assertThrows(ProtocolSyntaxException.class, () -> Wire.readHeaderLine(buffered(line)));
+    }
+
+    @Test
+    void rejectsCarriageReturnsWithoutLineFeed() {
+        String flood = "\r".repeat(8192) + "more";
+        assertThrows(ProtocolSyntaxException.class, () -> Wire.readHeaderLine(plain(flood)));
+        assertThrows(ProtocolSyntaxException.class, () -> Wire.readHeaderLine(buffered(flood)));
+        // a stream that never ends, so only the length check can stop the read
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return '\r';
+            }
+        };
+        assertTimeoutPreemptively(Duration.ofSeconds(2),
+                () -> assertThrows(ProtocolSyntaxException.class, () -> Wire.readHeaderLine(new WireInputStream(endless))));
+    }
+}